@@ -0,0 +1,57 @@
+package eniso.bio;
+
+// 阻塞读取时每次 read 的大小，根据最近的读取情况调整：读满了就翻倍，连续两次读到的不足一半才减半
+// 消息小、频繁的连接只占用很小的 buffer，持续大量发送的连接每次 read 能读到更多数据，减少系统调用
+// 每个连接一个，不是线程安全的
+public final class BIORecvBufferSizer {
+
+    public static final int DEFAULT_MINIMUM = 64;
+
+    public static final int DEFAULT_INITIAL = 1024;
+
+    public static final int DEFAULT_MAXIMUM = 64 * 1024;
+
+    private final int minimum;
+
+    private final int maximum;
+
+    private int size;
+
+    // 上一次已经满足了变小的条件，再满足一次才真正变小
+    private boolean decreaseNow;
+
+    public BIORecvBufferSizer() {
+        this(DEFAULT_MINIMUM, DEFAULT_INITIAL, DEFAULT_MAXIMUM);
+    }
+
+    public BIORecvBufferSizer(int minimum, int initial, int maximum) {
+        if (minimum <= 0 || initial < minimum || maximum < initial) {
+            throw new IllegalArgumentException("minimum: " + minimum + ", initial: " + initial + ", maximum: " + maximum);
+        }
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.size = initial;
+    }
+
+    // 下一次 read 的字节数
+    public int size() {
+        return size;
+    }
+
+    public void record(int read) {
+        if (read >= size) {
+            size = Math.min(size << 1, maximum);
+            decreaseNow = false;
+        } else if (read <= size >>> 1) {
+            if (decreaseNow) {
+                size = Math.max(size >>> 1, minimum);
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else {
+            decreaseNow = false;
+        }
+    }
+
+}
@@ -1,57 +1,367 @@
 package eniso.bio;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class BIOServer {
+public class BIOServer implements Runnable, Closeable {
 
-    public static void main(String[] args) {
+    // 与客户端通信的线程模型
+    public enum ExecutionMode {
+        // 无界的缓存线程池，每个连接一个平台线程，几千个连接就会耗尽内存或者线程数限制
+        CACHED,
+        // 每个连接一个虚拟线程（JDK 21+），阻塞时不占用平台线程，可以支撑十万级连接
+        VIRTUAL,
+        // 固定大小的平台线程池 + 有界等待队列，超过上限的连接直接拒绝
+        BOUNDED
+    }
+
+    private static final int DEFAULT_BACKLOG = 1024;
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024;
+
+    // 默认按行拆分消息，收到一行就打印一行
+    public static final BIOStreamHandler PRINT_HANDLER = (socket, data, offset, length) ->
+            System.out.println("收到客户端信息：" + new String(data, offset, length));
+
+    private final ExecutionMode mode;
+
+    private final ExecutorService executor;
+
+    // 每个 acceptor 一个 ServerSocket，由各自的线程阻塞 accept
+    private final ServerSocket[] serverSockets;
+
+    // 当前正在处理的连接数
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final ScheduledExecutorService reporter;
+
+    private BIOStreamHandler streamHandler = PRINT_HANDLER;
+
+    // 消息分隔符，小于 0 表示不拆分消息，直接回调原始数据
+    private int delimiter = '\n';
+
+    // 配置了分隔符时，单条消息（不含分隔符）的最大字节数，每个连接的 buffer 最多再多出 1 字节用来放分隔符
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    public BIOServer(int port) throws IOException {
+        this(port, ExecutionMode.CACHED);
+    }
+
+    public BIOServer(int port, ExecutionMode mode) throws IOException {
+        this(port, mode, Runtime.getRuntime().availableProcessors() * 64, DEFAULT_BACKLOG);
+    }
+
+    // maxThreads、maxPending 只对 BOUNDED 模式生效；maxPending 同时作为 ServerSocket 的 backlog
+    public BIOServer(int port, ExecutionMode mode, int maxThreads, int maxPending) throws IOException {
+        this(port, mode, maxThreads, maxPending, 1);
+    }
+
+    // acceptors 大于 1 时，通过 SO_REUSEPORT 在同一个端口上绑定多个 ServerSocket，每个由一个线程 accept，
+    // 内核把新连接分散到各个监听队列中，大量客户端同时重连时 accept 不再只由一个线程完成
+    public BIOServer(int port, ExecutionMode mode, int maxThreads, int maxPending, int acceptors) throws IOException {
+        if (acceptors <= 0) {
+            throw new IllegalArgumentException("acceptors: " + acceptors + " (expected: > 0)");
+        }
+        this.mode = mode;
         // 1. 创建一个线程池
-        Executor executor = Executors.newCachedThreadPool();
-        // 2. 创建 ServerSocket
-        try (ServerSocket serverSocket = new ServerSocket(7070)) {
-            System.out.println("BIO Server started");
+        executor = newExecutor(mode, maxThreads, maxPending);
+        // 2. 创建 ServerSocket，backlog 是内核中已完成三次握手、等待 accept 的连接队列长度
+        serverSockets = new ServerSocket[acceptors];
+        try {
+            if (acceptors == 1) {
+                serverSockets[0] = new ServerSocket(port, maxPending);
+            } else {
+                for (int i = 0; i < acceptors; i++) {
+                    serverSockets[i] = openReusePort(port, maxPending);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 部分 ServerSocket 已经绑定，需要释放
+            for (ServerSocket serverSocket : serverSockets) {
+                if (serverSocket != null) {
+                    serverSocket.close();
+                }
+            }
+            executor.shutdownNow();
+            throw e;
+        }
+        // 线程在第一次调度时才会创建，不调用 reportStatistics 就不会有额外的线程
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "bio-server-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // 定时输出线程数和内存使用情况，便于对比不同模式，默认不输出
+    public void reportStatistics(long period, TimeUnit unit) {
+        reporter.scheduleAtFixedRate(() -> System.out.println(statistics()), period, period, unit);
+    }
+
+    // 以下 set 方法需要在 run 之前调用
+    public void setStreamHandler(BIOStreamHandler streamHandler) {
+        this.streamHandler = streamHandler;
+    }
+
+    public void setDelimiter(int delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        if (maxMessageSize <= 0) {
+            throw new IllegalArgumentException("maxMessageSize: " + maxMessageSize + " (expected: > 0)");
+        }
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    // ServerSocket 在 JDK 8 上不能设置 SO_REUSEPORT，通过阻塞模式的 ServerSocketChannel 设置后再取出它的 ServerSocket
+    // 项目按 JDK 8 编译，按名字查找 JDK 9 新增的 StandardSocketOptions#SO_REUSEPORT
+    // 与 02-java-nio 的 NIOSocketOptions#setReusePort 相同，01-java-bio 是独立的模块，不依赖 02-java-nio，所以在这里保留一份
+    @SuppressWarnings("unchecked")
+    private static ServerSocket openReusePort(int port, int backlog) throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            SocketOption<Boolean> reusePort = null;
+            for (SocketOption<?> option : channel.supportedOptions()) {
+                if ("SO_REUSEPORT".equals(option.name()) && option.type() == Boolean.class) {
+                    reusePort = (SocketOption<Boolean>) option;
+                    break;
+                }
+            }
+            if (reusePort == null) {
+                throw new UnsupportedOperationException("当前 JDK 或操作系统不支持 SO_REUSEPORT，JDK "
+                        + System.getProperty("java.version") + "，" + System.getProperty("os.name"));
+            }
+            channel.setOption(reusePort, true);
+            channel.bind(new InetSocketAddress(port), backlog);
+            return channel.socket();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ExecutorService newExecutor(ExecutionMode mode, int maxThreads, int maxPending) {
+        switch (mode) {
+            case VIRTUAL:
+                return newVirtualThreadPerTaskExecutor();
+            case BOUNDED:
+                // 线程和等待队列都有上限，队列满了之后由 execute 抛出 RejectedExecutionException
+                return new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(maxPending), new ThreadPoolExecutor.AbortPolicy());
+            case CACHED:
+            default:
+                return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        // 项目按 JDK 8 编译，通过反射使用 JDK 21 的 Executors#newVirtualThreadPerTaskExecutor
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("虚拟线程需要 JDK 21 及以上版本，当前版本 "
+                    + System.getProperty("java.version"), e);
+        }
+    }
+
+    @Override
+    public void run() {
+        System.out.println("BIO Server started, mode = " + mode + ", acceptors = " + serverSockets.length);
+        // 第一个 ServerSocket 在当前线程 accept，其他的各自一个线程
+        for (int i = 1; i < serverSockets.length; i++) {
+            final ServerSocket serverSocket = serverSockets[i];
+            final Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "bio-server-acceptor-" + (i + 1));
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        acceptLoop(serverSockets[0]);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        try {
             while (true) {
                 // 监听：等待客户端连接，accept 阻塞，直到有客户端连接
                 // 连接建立后，可以通过 socket 对象与客户端进行通信
                 final Socket socket = serverSocket.accept();
                 System.out.println("BIO Server accept a client ...");
-                // 使用线程池中的线程与客户端通信
-                executor.execute(new MyHandler(socket));
+                try {
+                    // 使用线程池中的线程（或者虚拟线程）与客户端通信
+                    executor.execute(new MyHandler(socket, connections, streamHandler, delimiter, maxMessageSize));
+                } catch (RejectedExecutionException e) {
+                    // BOUNDED 模式下线程和等待队列都满了，拒绝这个连接，保护服务端不被拖垮
+                    System.out.println("BIO Server busy, reject " + socket.getRemoteSocketAddress());
+                    socket.close();
+                }
+            }
+        } catch (SocketException e) {
+            // close 关闭了 ServerSocket，accept 抛出异常，正常退出
+            if (!serverSocket.isClosed()) {
+                e.printStackTrace();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    public String statistics() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        final StringBuilder sb = new StringBuilder()
+                .append("mode=").append(mode)
+                .append(", connections=").append(connections.get())
+                // 只统计平台线程，虚拟线程不计入
+                .append(", platformThreads=").append(threadMXBean.getThreadCount())
+                .append(", peakThreads=").append(threadMXBean.getPeakThreadCount())
+                .append(", heapUsed=").append(memoryMXBean.getHeapMemoryUsage().getUsed() >> 20).append("MB")
+                .append(", nonHeapUsed=").append(memoryMXBean.getNonHeapMemoryUsage().getUsed() >> 20).append("MB");
+        // 平台线程的栈不在堆上，通过进程的虚拟内存大小体现
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            sb.append(", committedVirtualMemory=")
+                    .append(((com.sun.management.OperatingSystemMXBean) os).getCommittedVirtualMemorySize() >> 20)
+                    .append("MB");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ServerSocket serverSocket : serverSockets) {
+            serverSocket.close();
+        }
+        reporter.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    // 参数：[CACHED | VIRTUAL | BOUNDED] [acceptors]，支撑大量连接时还需要调大 ulimit -n
+    public static void main(String[] args) {
+        final ExecutionMode mode = args.length > 0 ? ExecutionMode.valueOf(args[0].toUpperCase()) : ExecutionMode.CACHED;
+        final int acceptors = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        try (BIOServer server = new BIOServer(7070, mode, Runtime.getRuntime().availableProcessors() * 64,
+                DEFAULT_BACKLOG, acceptors)) {
+            server.reportStatistics(5, TimeUnit.SECONDS);
+            server.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static class MyHandler implements Runnable {
         final Socket socket;
 
-        MyHandler(Socket socket) {
+        final AtomicInteger connections;
+
+        final BIOStreamHandler handler;
+
+        final int delimiter;
+
+        final int maxMessageSize;
+
+        MyHandler(Socket socket, AtomicInteger connections, BIOStreamHandler handler, int delimiter, int maxMessageSize) {
             this.socket = socket;
+            this.connections = connections;
+            this.handler = handler;
+            this.delimiter = delimiter;
+            this.maxMessageSize = maxMessageSize;
         }
 
         public void run() {
+            connections.incrementAndGet();
             // 得到输入流，接收客户端发送的数据
             try (InputStream is = socket.getInputStream()) {
-                StringBuilder sb = new StringBuilder();
-                byte[] buffer = new byte[4096];
-                // 循环读取客户端的数据
-                while (true) {
-                    int read = is.read(buffer);
-                    // -1 表示读取完毕
-                    if (read == -1) {
-                        break;
-                    }
-                    sb.append(new String(buffer, 0, read));
+                if (delimiter < 0) {
+                    readChunks(is);
+                } else {
+                    readMessages(is);
                 }
-                System.out.println("收到客户端信息：" + sb.toString());
+                handler.onEnd(socket);
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                connections.decrementAndGet();
+            }
+        }
+
+        private void readChunks(InputStream is) throws IOException {
+            // 每个连接只有一个 buffer，读到多少回调多少，内存占用与数据总量无关
+            // buffer 大小根据最近的读取情况调整，小消息的连接只占用很小的 buffer
+            final BIORecvBufferSizer sizer = new BIORecvBufferSizer();
+            byte[] buffer = new byte[sizer.size()];
+            // 循环读取客户端的数据
+            while (true) {
+                int read = is.read(buffer);
+                // -1 表示读取完毕
+                if (read == -1) {
+                    break;
+                }
+                handler.onData(socket, buffer, 0, read);
+                sizer.record(read);
+                if (sizer.size() != buffer.length) {
+                    // 回调结束后 buffer 中的数据已经没用了，直接换成新的大小
+                    buffer = new byte[sizer.size()];
+                }
+            }
+        }
+
+        private void readMessages(InputStream is) throws IOException {
+            // [0, end) 是还没有找到分隔符的数据，按字节拆分消息，多字节字符不会被截断
+            // buffer 按需扩容，但不会超过 maxMessageSize + 1（多出的 1 字节留给分隔符），连接数很多时也不会一开始就占用大量内存
+            // 每次 read 的大小根据最近的读取情况调整，没有半条消息时 buffer 也可以跟着变小
+            final int capacity = maxMessageSize + 1;
+            final BIORecvBufferSizer sizer = new BIORecvBufferSizer(Math.min(BIORecvBufferSizer.DEFAULT_MINIMUM, capacity),
+                    Math.min(BIORecvBufferSizer.DEFAULT_INITIAL, capacity), capacity);
+            byte[] buffer = new byte[sizer.size()];
+            int end = 0;
+            while (true) {
+                if (end == 0 && buffer.length > sizer.size() << 1) {
+                    buffer = new byte[sizer.size()];
+                }
+                if (end == buffer.length) {
+                    if (buffer.length == capacity) {
+                        // 已经有 maxMessageSize + 1 字节还没有遇到分隔符
+                        throw new IOException("消息超过最大长度 " + maxMessageSize + " 字节");
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(buffer.length << 1, capacity));
+                }
+                final int length = Math.min(buffer.length - end, sizer.size());
+                int read = is.read(buffer, end, length);
+                if (read == -1) {
+                    break;
+                }
+                // 读满了才会变大，之后 buffer 不够时再按上面的逻辑扩容
+                sizer.record(read == length ? sizer.size() : read);
+                int start = 0;
+                for (int i = end; i < end + read; i++) {
+                    if (buffer[i] == (byte) delimiter) {
+                        handler.onData(socket, buffer, start, i - start);
+                        start = i + 1;
+                    }
+                }
+                end += read;
+                if (start > 0) {
+                    // 把不完整的消息移动到 buffer 开头
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                }
+            }
+            if (end > 0) {
+                // 客户端关闭前最后一条消息可以没有分隔符
+                handler.onData(socket, buffer, 0, end);
             }
         }
     }
@@ -0,0 +1,17 @@
+package eniso.bio;
+
+import java.io.IOException;
+import java.net.Socket;
+
+// 流式处理客户端数据，不需要把整个流缓存到内存中
+public interface BIOStreamHandler {
+
+    // 没有配置分隔符时，每次 read 到的原始数据回调一次；配置了分隔符时，每条完整的消息（不含分隔符）回调一次
+    // data 是连接复用的 buffer，只在回调期间有效，需要保留的话要自己拷贝
+    void onData(Socket socket, byte[] data, int offset, int length) throws IOException;
+
+    // 客户端关闭了输出，剩余的数据已经全部回调
+    default void onEnd(Socket socket) throws IOException {
+    }
+
+}
@@ -0,0 +1,210 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// 异步日志：事件循环只把日志的字节拷贝到环形缓冲区中，由后台线程批量写到输出流
+// System.out.println 在事件循环中同步写控制台，每条都要加锁、编码、系统调用，输出慢时还会阻塞事件循环
+// 每个写日志的线程（通常是各个 worker 事件循环）有自己的单生产者环形缓冲区，写入不加锁，多个 worker 之间不会互相竞争
+// 环形缓冲区写满时直接丢弃新的日志并计数，不阻塞调用方；记录以换行结尾，写入时不创建任何对象
+// 同一个线程的日志按顺序输出，不同线程之间的日志不保证顺序
+public final class NIOAsyncLogger implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    // 后台线程等待新日志的最长时间，防止错过唤醒时一直等待
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final OutputStream out;
+
+    // 每个线程的环形缓冲区容量
+    private final int capacity;
+
+    private final Thread thread;
+
+    // 第一次写日志时创建当前线程的环形缓冲区，之后直接取出，线程退出后缓冲区仍然保留在 rings 中
+    private final ThreadLocal<Ring> localRing = ThreadLocal.withInitial(this::register);
+
+    // copy-on-write，只在注册新的线程时复制，后台线程遍历快照
+    private volatile Ring[] rings = new Ring[0];
+
+    // 后台线程正在等待新的日志，写入之后才需要唤醒
+    private volatile boolean waiting;
+
+    private volatile boolean closed;
+
+    public NIOAsyncLogger(OutputStream out) {
+        this(out, DEFAULT_CAPACITY, "async-logger");
+    }
+
+    public NIOAsyncLogger(OutputStream out, int capacity, String name) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity: " + capacity + " (expected: power of 2)");
+        }
+        this.out = out;
+        this.capacity = capacity;
+        thread = new Thread(this::drain, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 一条日志：prefix + payload 中 [position, limit) 的字节 + 换行，不改变 payload 的 position，返回 false 表示被丢弃
+    public boolean log(byte[] prefix, ByteBuffer payload) {
+        final Ring ring = localRing.get();
+        if (closed || !ring.offer(prefix, payload)) {
+            ring.dropped++;
+            return false;
+        }
+        // 先发布 writeIndex 再读 waiting，后台线程先写 waiting 再读 writeIndex，两边至少有一方能看到对方的写入
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    // 因为缓冲区已满而丢弃的日志条数
+    public long dropped() {
+        long dropped = 0;
+        for (Ring ring : rings) {
+            dropped += ring.dropped;
+        }
+        return dropped;
+    }
+
+    private synchronized Ring register() {
+        final Ring ring = new Ring(capacity);
+        final Ring[] copy = Arrays.copyOf(rings, rings.length + 1);
+        copy[rings.length] = ring;
+        rings = copy;
+        return ring;
+    }
+
+    private void drain() {
+        final byte[] batch = new byte[Math.min(BATCH_SIZE, capacity)];
+        try {
+            while (true) {
+                // 先读 closed 再输出：看到关闭之后又没有数据可以输出，说明关闭之前写入的日志都已经输出
+                final boolean exit = closed;
+                boolean drained = false;
+                for (Ring ring : rings) {
+                    // 每个缓冲区只输出到开始时的 writeIndex，它一定是记录的边界，不同线程的记录不会交错，
+                    // 一直在写日志的线程也不会让其他线程的日志得不到输出
+                    final long end = ring.writeIndex;
+                    int length;
+                    while ((length = ring.poll(batch, end)) > 0) {
+                        // 输出慢时只会让缓冲区变满，不会阻塞写日志的线程
+                        out.write(batch, 0, length);
+                        drained = true;
+                    }
+                }
+                if (drained) {
+                    out.flush();
+                    continue;
+                }
+                if (exit) {
+                    break;
+                }
+                waiting = true;
+                if (isEmpty() && !closed) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                waiting = false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isEmpty() {
+        for (Ring ring : rings) {
+            if (ring.readIndex != ring.writeIndex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 输出剩余的日志后退出后台线程，不关闭输出流
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 单生产者单消费者的环形缓冲区：只有所属线程写 writeIndex，只有后台线程写 readIndex
+    // 容量是 2 的幂次，[readIndex, writeIndex) 是还没有输出的数据，下标一直增长，取模后才是数组下标
+    private static final class Ring {
+        final byte[] buffer;
+
+        // 写入数据之后才更新，后台线程读到新的 writeIndex 时一定能看到之前写入的数据
+        volatile long writeIndex;
+
+        // 取出数据之后才更新，生产者读到新的 readIndex 时这部分空间才可以覆盖
+        volatile long readIndex;
+
+        // 只有所属线程修改
+        volatile long dropped;
+
+        Ring(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        // 由所属线程调用
+        boolean offer(byte[] prefix, ByteBuffer payload) {
+            final int length = prefix.length + payload.remaining() + 1;
+            long index = writeIndex;
+            if (buffer.length - (index - readIndex) < length) {
+                return false;
+            }
+            index = put(index, prefix, 0, prefix.length);
+            final int start = payload.position();
+            final int limit = payload.limit();
+            if (payload.hasArray()) {
+                index = put(index, payload.array(), payload.arrayOffset() + start, limit - start);
+            } else {
+                for (int i = start; i < limit; i++) {
+                    buffer[(int) (index++ & (buffer.length - 1))] = payload.get(i);
+                }
+            }
+            buffer[(int) (index++ & (buffer.length - 1))] = '\n';
+            writeIndex = index;
+            return true;
+        }
+
+        private long put(long index, byte[] src, int offset, int length) {
+            final int start = (int) (index & (buffer.length - 1));
+            final int first = Math.min(length, buffer.length - start);
+            System.arraycopy(src, offset, buffer, start, first);
+            System.arraycopy(src, offset + first, buffer, 0, length - first);
+            return index + length;
+        }
+
+        // 由后台线程调用，把 end 之前的数据拷贝到 batch 中，返回拷贝的字节数
+        int poll(byte[] batch, long end) {
+            final long index = readIndex;
+            final int length = (int) Math.min(end - index, batch.length);
+            if (length == 0) {
+                return 0;
+            }
+            final int start = (int) (index & (buffer.length - 1));
+            final int first = Math.min(length, buffer.length - start);
+            System.arraycopy(buffer, start, batch, 0, first);
+            System.arraycopy(buffer, 0, batch, first, length - first);
+            readIndex = index + length;
+            return length;
+        }
+    }
+
+}
@@ -20,12 +20,19 @@ public class NIOBasicClient {
                 }
             }
 
-            // 已经连接到服务器
-            socketChannel.write(ByteBuffer.wrap("hello, i'm NIOBasicClient".getBytes()));
+            // 已经连接到服务器，每条消息都编码为 长度 + 内容 的帧，服务端才能区分消息边界
+            socketChannel.write(NIOFrameEncoder.encode("hello, i'm NIOBasicClient"));
             Thread.sleep(1000);
-            socketChannel.write(ByteBuffer.wrap("hello, i'm NIOBasicClient2".getBytes()));
+            socketChannel.write(NIOFrameEncoder.encode("hello, i'm NIOBasicClient2"));
             Thread.sleep(1000);
-            socketChannel.write(ByteBuffer.wrap("hello, i'm NIOBasicClient3".getBytes()));
+            // 多条消息可以放在同一个 buffer 中，一次 write 发送出去，服务端依然能正确拆分
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            NIOFrameEncoder.encode("hello, i'm NIOBasicClient3".getBytes(), buffer);
+            NIOFrameEncoder.encode("hello, i'm NIOBasicClient4".getBytes(), buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                socketChannel.write(buffer);
+            }
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
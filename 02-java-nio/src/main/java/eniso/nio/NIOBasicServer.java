@@ -1,79 +1,235 @@
 package eniso.nio;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class NIOBasicServer {
+public class NIOBasicServer implements Runnable, Closeable {
 
-    public static void main(String[] args) {
-        // 创建 ServerSocketChannel 和 Selector
-        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-             Selector selector = Selector.open()) {
-            // 绑定端口
-            serverSocketChannel.bind(new InetSocketAddress(7070));
-            // 设置为非阻塞
-            serverSocketChannel.configureBlocking(false);
-            // 把 ServerSocketChannel 注册到 Selector 上，ServerSocketChannel 只处理连接请求 OP_ACCEPT
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, null);
-            System.out.println("NIOBasicServer started");
-
-            while (true) {
-                // 等待客户端连接，注意，此时可能有 bug，导致空轮询
-                if (selector.select(5000) == 0) {
-                    // 没有 ServerSocket 关心的事件 OP_ACCEPT 发生
-                    continue;
+    // 请求/响应模式：请求帧 = 4 字节长度 + 8 字节关联 ID + 请求内容，响应帧格式相同，带回请求的关联 ID
+    // 客户端可以不等响应连续发送多个请求（pipelining），响应按请求的顺序返回
+    public interface RequestHandler {
+        // request 只在回调期间有效，返回的响应内容处于读模式，在本次读取的所有请求处理完之后才发送
+        ByteBuffer handle(ByteBuffer request) throws IOException;
+    }
+
+    public static final int CORRELATION_ID_LENGTH = 8;
+
+    // 默认的处理器：原样返回请求内容
+    public static final RequestHandler ECHO = request -> {
+        final ByteBuffer response = ByteBuffer.allocate(request.remaining());
+        response.put(request).flip();
+        return response;
+    };
+
+    private final ServerSocketChannel serverSocketChannel;
+
+    // 只有一个事件循环，连接请求和读写都在同一个 Selector 上处理
+    private final NIOEventLoop loop;
+
+    // 为 null 时只打印收到的消息，不回复
+    private final RequestHandler requestHandler;
+
+    public NIOBasicServer(int port) throws IOException {
+        this(port, null);
+    }
+
+    public NIOBasicServer(int port, RequestHandler requestHandler) throws IOException {
+        this.requestHandler = requestHandler;
+        // 创建 ServerSocketChannel 和 Selector（由事件循环创建）
+        serverSocketChannel = ServerSocketChannel.open();
+        loop = new NIOEventLoop("nio-basic", this::handler);
+        // 绑定端口
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        // 设置为非阻塞
+        serverSocketChannel.configureBlocking(false);
+        // 把 ServerSocketChannel 注册到 Selector 上，ServerSocketChannel 只处理连接请求 OP_ACCEPT
+        serverSocketChannel.register(loop.selector(), SelectionKey.OP_ACCEPT, null);
+    }
+
+    // 事件循环通过 Selector#selectedKeys() 拿到有事件发生的 SelectionKey，逐个交给这里处理
+    // #keys() 返回所有注册在 Selector 上的 SelectionKey 的集合
+    private void handler(SelectionKey selectionKey) throws IOException {
+        SelectableChannel channel = selectionKey.channel();
+        if (selectionKey.isAcceptable()) {
+            // OP_ACCEPT 事件，这里调用 accept 将很快返回
+            // final SocketChannel socketChannel = serverSocketChannel.accept();
+            if (channel instanceof ServerSocketChannel) {
+                final SocketChannel socketChannel = ((ServerSocketChannel) channel).accept();
+                // 设置为非阻塞
+                socketChannel.configureBlocking(false);
+                if (requestHandler != null) {
+                    // 请求/响应模式：关闭 Nagle 算法，否则一批响应分多次写出时，后面的小包要等前一个包的 ACK，
+                    // 而客户端在收齐响应前不会发送数据，只能等延迟 ACK（约 40ms）
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
                 }
+                // 与客户端通信，我们这里只关注 OP_READ 事件，这里也可以通过 new NIOFrameDecoder() 指定解码器
+                // 请求/响应模式下关联的是 Pipeline，除了解码器，还保存着本次读取产生的所有响应
+                socketChannel.register(loop.selector(), SelectionKey.OP_READ,
+                        requestHandler == null ? new NIOFrameDecoder() : new Pipeline());
+                loop.metrics().connectionOpened();
+            } else {
+                System.out.println("收到 OP_ACCEPT " + channel.getClass());
+            }
+        } else if (selectionKey.attachment() instanceof Pipeline) {
+            final Pipeline pipeline = (Pipeline) selectionKey.attachment();
+            try {
+                if (selectionKey.isWritable()) {
+                    // 上次的响应没有写完，发送缓冲区有空间了，继续发送
+                    pipeline.flush(selectionKey);
+                } else if (selectionKey.isReadable()) {
+                    pipeline.read(selectionKey);
+                }
+            } catch (IOException e) {
+                pipeline.close(selectionKey);
+            }
+        } else if (selectionKey.isReadable()) {
+            // OP_READ 事件
+            if (channel instanceof SocketChannel) {
+                Object attachment = selectionKey.attachment();
+                NIOFrameDecoder decoder;
+                if (attachment instanceof NIOFrameDecoder) {
+                    // 这便是上面注册时关联的解码器，内部的 buffer 保存着上次没有读完整的数据
+                    decoder = (NIOFrameDecoder) attachment;
+                } else {
+                    // 上面只是演示注册时关联解码器，如果没有关联，需要自己手动创建一个
+                    decoder = new NIOFrameDecoder();
+                    // 半包数据需要跨多次读取累积，所以必须 attach 到 selectionKey 上
+                    selectionKey.attach(decoder);
+                }
+                int read;
+                try {
+                    // 将通道中的数据写入解码器的 buffer，一次读取可能包含多条消息，也可能只有半条
+                    read = decoder.read((SocketChannel) channel,
+                            frame -> System.out.println("接收到客户端的数据：" + NIOFrameDecoder.toString(frame)));
+                } catch (IOException e) {
+                    // 客户端异常断开（连接被重置）或者帧长度非法，与读到 EOF 一样关闭连接
+                    read = -1;
+                }
+                if (read > 0) {
+                    loop.metrics().read(read);
+                }
+                if (read == -1) {
+                    loop.metrics().connectionClosed();
+                    // 当客户端断开后，这里也需要断开。解决一些 JDK 在客户端断开后的问题
+                    decoder.release();
+                    selectionKey.cancel();
+                    NIOEventLoop.closeQuietly(channel);
+                }
+            }
+        }
+    }
+
+    // 一个连接的请求/响应状态，只在事件循环线程中访问
+    private final class Pipeline {
+        private static final int RESPONSE_HEADER_LENGTH = NIOFrameDecoder.HEADER_LENGTH + CORRELATION_ID_LENGTH;
+
+        private final NIOFrameDecoder decoder = new NIOFrameDecoder();
 
-                // #selectedKeys() 返回的是有事件发生的 SelectionKey 的集合
-                // #keys() 返回所有注册在 Selector 上的 SelectionKey 的集合
-                Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                for (SelectionKey selectionKey : selectionKeys) {
-                    SelectableChannel channel = selectionKey.channel();
-                    if (selectionKey.isAcceptable()) {
-                        // OP_ACCEPT 事件，这里调用 accept 将很快返回
-                        // final SocketChannel socketChannel = serverSocketChannel.accept();
-                        if (channel instanceof ServerSocketChannel) {
-                            final SocketChannel socketChannel = ((ServerSocketChannel) channel).accept();
-                            // 设置为非阻塞
-                            socketChannel.configureBlocking(false);
-                            // 与客户端通信，我们这里只关注 OP_READ 事件，这里也可以通过 ByteBuffer.allocate(4096) 指定 Buffer
-                            socketChannel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(4096));
-                        } else {
-                            System.out.println("收到 OP_ACCEPT " + channel.getClass());
-                        }
-                    } else if (selectionKey.isReadable()) {
-                        // OP_READ 事件
-                        if (channel instanceof SocketChannel) {
-                            Object attachment = selectionKey.attachment();
-                            ByteBuffer buffer;
-                            if (attachment instanceof ByteBuffer) {
-                                // 这便是上面注册时关联的 Buffer
-                                buffer = (ByteBuffer) attachment;
-                            } else {
-                                // 上面只是演示注册时关联 Buffer，如果没有关联 Buffer，需要自己手动创建一个 Buffer
-                                buffer = ByteBuffer.allocate(4096);
-                                // 为了减少创建次数，这里可以 attach 到 selectionKey 上
-                                selectionKey.attach(buffer);
-                            }
-                            // 清空 buffer
-                            buffer.clear();
-                            // 将通道中的数据，写入到 buffer
-                            final int read = ((SocketChannel) channel).read(buffer);
-                            if (read != -1) {
-                                System.out.println("接收到客户端的数据：" + new String(buffer.array(), 0, read));
-                            } else {
-                                // 当客户端断开后，这里也需要断开。解决一些 JDK 在客户端断开后的问题
-                                selectionKey.cancel();
-                                channel.close();
-                            }
-                        }
-                    }
+        // 所有响应的帧头（长度 + 关联 ID）连续写入同一个 buffer，不够时自动扩容
+        private final NIOByteBuf headers = NIOByteBuf.allocateDirect(64 * RESPONSE_HEADER_LENGTH);
+
+        // 帧头、响应内容交替组合在一起，只保存视图，不拷贝响应内容
+        private final NIOCompositeByteBuf outbound = new NIOCompositeByteBuf(128);
+
+        void read(SelectionKey key) throws IOException {
+            // 只有上次的响应全部写完才会读取（见 flush），这里可以复用帧头 buffer
+            headers.clear();
+            // 一次读取可能解码出多个请求，逐个处理，响应先攒起来
+            final int read = decoder.read((SocketChannel) key.channel(), frame -> {
+                if (frame.remaining() < CORRELATION_ID_LENGTH) {
+                    throw new IOException("请求缺少关联 ID");
                 }
-                selectionKeys.clear();
+                final long correlationId = frame.getLong();
+                add(correlationId, requestHandler.handle(frame));
+            });
+            if (read > 0) {
+                loop.metrics().read(read);
+            }
+            if (read == -1) {
+                throw new IOException("客户端断开连接");
+            }
+            if (outbound.isReadable()) {
+                // 本次读取的所有响应通过一次 Gathering write 发送，之后再回到 select
+                flush(key);
+            }
+        }
+
+        private void add(long correlationId, ByteBuffer body) {
+            final int index = headers.writerIndex();
+            headers.writeInt(CORRELATION_ID_LENGTH + body.remaining());
+            headers.writeLong(correlationId);
+            // 扩容后已经组合的帧头视图仍然引用旧的内存，不受影响
+            outbound.addComponent(headers.nioBuffer(index, RESPONSE_HEADER_LENGTH));
+            outbound.addComponent(body);
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            final long written = outbound.readBytes((SocketChannel) key.channel());
+            if (written > 0) {
+                loop.metrics().written(written);
             }
+            if (outbound.isReadable()) {
+                // 发送缓冲区满了：暂停读取，等待 OP_WRITE，客户端发得再快也不会在服务端堆积响应
+                loop.metrics().partialWrite();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close(SelectionKey key) {
+            loop.metrics().connectionClosed();
+            decoder.release();
+            key.cancel();
+            NIOEventLoop.closeQuietly(key.channel());
+        }
+    }
+
+    public NIOEventLoopMetrics metrics() {
+        return loop.metrics();
+    }
+
+    public void stop() {
+        loop.stop();
+    }
+
+    @Override
+    public void run() {
+        System.out.println("NIOBasicServer started");
+        // 事件循环运行在当前线程
+        loop.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        loop.close();
+        serverSocketChannel.close();
+    }
+
+    public static void main(String[] args) {
+        // 参数 pipeline：请求/响应模式，原样返回请求内容，配合 NIOPipelinedClient 使用
+        final boolean pipeline = args.length > 0 && args[0].equals("pipeline");
+        try (NIOBasicServer server = new NIOBasicServer(7070, pipeline ? ECHO : null)) {
+            // 每 5 秒输出一次这段时间内事件循环的指标
+            final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "nio-basic-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final NIOEventLoopMetrics.Snapshot[] last = {server.metrics().snapshot()};
+            reporter.scheduleAtFixedRate(() -> {
+                final NIOEventLoopMetrics.Snapshot current = server.metrics().snapshot();
+                System.out.println(current.minus(last[0]));
+                last[0] = current;
+            }, 5, 5, TimeUnit.SECONDS);
+            server.run();
         } catch (IOException e) {
             e.printStackTrace();
         }
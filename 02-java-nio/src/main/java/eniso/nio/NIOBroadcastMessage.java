@@ -0,0 +1,146 @@
+package eniso.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class NIOBroadcastMessage {
+
+    // 统计：广播次数、实际分配的字节数、投递的接收者数量、如果每个接收者单独编码需要分配的字节数
+    private static final LongAdder BROADCASTS = new LongAdder();
+
+    private static final LongAdder ALLOCATED_BYTES = new LongAdder();
+
+    private static final LongAdder DELIVERIES = new LongAdder();
+
+    private static final LongAdder PER_RECIPIENT_BYTES = new LongAdder();
+
+    // 每个线程缓存的消息对象个数，释放后回到释放线程的缓存，下一次 encode 时复用
+    private static final int MAX_RECYCLED_PER_THREAD = 256;
+
+    private static final ThreadLocal<Recycler> RECYCLER = ThreadLocal.withInitial(Recycler::new);
+
+    // 编码后的消息，只编码一次，所有接收者共享。对象会被复用，释放后 content 会指向新的 buffer
+    private ByteBuffer content;
+
+    // 引用计数，初始为 1，归创建者所有，最后一个使用者 release 后释放 buffer
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private NIOBroadcastMessage() {
+    }
+
+    public static NIOBroadcastMessage encode(String msg) {
+        final byte[] bytes = msg.getBytes();
+        final NIOBroadcastMessage message = allocate(bytes.length);
+        // 编码为完整的帧，接收者可以直接发送
+        NIOFrameEncoder.encode(bytes, message.content);
+        message.content.flip();
+        return message;
+    }
+
+    // 编码为 前缀 + payload 的帧，payload 是收到的原始字节，不经过 String 转换，不改变 payload 的 position
+    // 前缀和消息对象都可以复用，稳定状态下不创建任何对象
+    public static NIOBroadcastMessage encode(byte[] prefix, ByteBuffer payload) {
+        final int position = payload.position();
+        final NIOBroadcastMessage message = allocate(prefix.length + payload.remaining());
+        message.content.putInt(prefix.length + payload.remaining()).put(prefix).put(payload).flip();
+        payload.position(position);
+        return message;
+    }
+
+    private static NIOBroadcastMessage allocate(int payloadLength) {
+        final int frameLength = NIOFrameEncoder.frameLength(payloadLength);
+        NIOBroadcastMessage message = RECYCLER.get().poll();
+        if (message == null) {
+            message = new NIOBroadcastMessage();
+        } else {
+            message.refCnt.set(1);
+        }
+        // 使用池化的直接内存，写入 SocketChannel 时不需要再拷贝到临时的直接内存中
+        message.content = NIOBufferPool.DEFAULT.allocate(frameLength);
+        BROADCASTS.increment();
+        ALLOCATED_BYTES.add(frameLength);
+        return message;
+    }
+
+    public int size() {
+        return content.remaining();
+    }
+
+    // 其他线程的接收者使用只读视图，共享数据，但拥有独立的 position / limit
+    public ByteBuffer duplicate() {
+        return content.asReadOnlyBuffer();
+    }
+
+    // 完整的帧，只能在创建消息的线程中使用，读取后要恢复 position，用于写入消息日志、以及同一个线程中的接收者直接发送
+    ByteBuffer frame() {
+        return content;
+    }
+
+    // 投递给一个接收者，只用于统计
+    void delivered() {
+        DELIVERIES.increment();
+        PER_RECIPIENT_BYTES.add(content.remaining());
+    }
+
+    public NIOBroadcastMessage retain() {
+        for (; ; ) {
+            final int cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("消息已经被释放");
+            }
+            if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    // 返回 true 表示这是最后一个引用，buffer 已经被释放
+    public boolean release() {
+        final int cnt = refCnt.decrementAndGet();
+        if (cnt < 0) {
+            throw new IllegalStateException("消息重复释放");
+        }
+        if (cnt == 0) {
+            // 所有接收者都已经写完，归还到池中，消息对象留给下一次 encode
+            NIOBufferPool.DEFAULT.release(content);
+            content = null;
+            RECYCLER.get().offer(this);
+            return true;
+        }
+        return false;
+    }
+
+    public static String statistics() {
+        final long broadcasts = BROADCASTS.sum();
+        if (broadcasts == 0) {
+            return "还没有广播消息";
+        }
+        return "广播 " + broadcasts + " 次，投递 " + DELIVERIES.sum() + " 次，平均每次广播分配 "
+                + ALLOCATED_BYTES.sum() / broadcasts + " 字节（每个接收者单独编码需要 "
+                + PER_RECIPIENT_BYTES.sum() / broadcasts + " 字节）";
+    }
+
+    // 线程本地的对象栈，只被所属线程访问，不需要同步
+    private static final class Recycler {
+        final NIOBroadcastMessage[] stack = new NIOBroadcastMessage[MAX_RECYCLED_PER_THREAD];
+
+        int size;
+
+        NIOBroadcastMessage poll() {
+            if (size == 0) {
+                return null;
+            }
+            final NIOBroadcastMessage message = stack[--size];
+            stack[size] = null;
+            return message;
+        }
+
+        void offer(NIOBroadcastMessage message) {
+            if (size < stack.length) {
+                stack[size++] = message;
+            }
+        }
+    }
+
+}
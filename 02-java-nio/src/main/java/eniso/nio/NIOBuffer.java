@@ -1,6 +1,7 @@
 package eniso.nio;
 
 import java.nio.*;
+import java.nio.charset.Charset;
 
 public class NIOBuffer {
 
@@ -109,6 +110,26 @@ public class NIOBuffer {
         }
     }
 
+    private static void byteBuf() {
+        // NIOByteBuf：读写索引分离，不需要 flip，容量不够时自动扩容
+        NIOByteBuf buf = NIOByteBuf.allocate(8);
+        buf.writeInt(100).writeLong(123L).writeBytes("hello".getBytes());
+        System.out.println(buf);
+        System.out.println(buf.readInt() + " " + buf.readLong());
+        // 读了一部分之后继续写，不需要 compact / flip
+        buf.writeBytes(" world".getBytes());
+        System.out.println(buf.toString(Charset.defaultCharset()) + " " + buf);
+
+        // NIOCompositeByteBuf：多段 buffer 组合为一条消息，只保存视图，不拷贝
+        // 这里组合为一个帧：只为长度字段分配 4 字节，body 只保存视图
+        ByteBuffer body = ByteBuffer.wrap("composite body".getBytes());
+        ByteBuffer header = ByteBuffer.allocate(NIOFrameDecoder.HEADER_LENGTH);
+        header.putInt(body.remaining()).flip();
+        NIOCompositeByteBuf frame = new NIOCompositeByteBuf(2).addComponent(header).addComponent(body);
+        System.out.println(frame + "，段数 " + frame.nioBuffers().length + "，合并后 "
+                + frame.consolidate().getInt() + " 字节的内容");
+    }
+
     public static void main(String[] args) throws InterruptedException {
         // Buffer 有很多实现，常用的是 ByteBuffer
         basicTest();
@@ -120,6 +141,10 @@ public class NIOBuffer {
         Thread.sleep(100);
 
         readOnly();
+        System.out.println("==========");
+        Thread.sleep(100);
+
+        byteBuf();
     }
 
 }
@@ -0,0 +1,150 @@
+package eniso.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class NIOBufferPool {
+
+    // 默认的全局池，所有事件循环共享，每个线程有自己的本地缓存
+    public static final NIOBufferPool DEFAULT = new NIOBufferPool();
+
+    // 规格：256B、512B、1KB ... 64KB，按 2 的幂次划分，超过最大规格的直接分配，不进入池
+    private static final int MIN_SIZE_SHIFT = 8;
+
+    private static final int MAX_SIZE_SHIFT = 16;
+
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SIZE_SHIFT;
+
+    private static final int SIZE_CLASSES = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+
+    // 每个线程每种规格最多缓存的 buffer 个数
+    private final int maxCachedPerThread;
+
+    // 共享池中每种规格最多保存的 buffer 个数
+    private final int maxPooledPerClass;
+
+    // 线程本地缓存放不下，或者 buffer 在其他线程释放时，进入共享池
+    private final Queue<ByteBuffer>[] shared;
+
+    private final AtomicInteger[] sharedCounts;
+
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    // 统计：新创建的直接内存字节数、当前借出的字节数
+    private final LongAdder createdBytes = new LongAdder();
+
+    private final LongAdder usedBytes = new LongAdder();
+
+    public NIOBufferPool() {
+        this(32, 1024);
+    }
+
+    public NIOBufferPool(int maxCachedPerThread, int maxPooledPerClass) {
+        this.maxCachedPerThread = maxCachedPerThread;
+        this.maxPooledPerClass = maxPooledPerClass;
+        // 不能直接创建泛型数组，创建通配符数组后转换，数组只在这个类中使用，元素都是 Queue<ByteBuffer>
+        @SuppressWarnings("unchecked")
+        final Queue<ByteBuffer>[] queues = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASSES];
+        shared = queues;
+        sharedCounts = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedCounts[i] = new AtomicInteger();
+        }
+        threadCache = ThreadLocal.withInitial(ThreadCache::new);
+    }
+
+    // 借出一个容量不小于 size 的直接内存 buffer，处于写模式，用完后需要 release
+    public ByteBuffer allocate(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            createdBytes.add(size);
+            usedBytes.add(size);
+            return ByteBuffer.allocateDirect(size);
+        }
+        final int index = sizeClass(size);
+        ByteBuffer buffer = threadCache.get().poll(index);
+        if (buffer == null) {
+            buffer = shared[index].poll();
+            if (buffer != null) {
+                sharedCounts[index].decrementAndGet();
+            } else {
+                final int capacity = 1 << (index + MIN_SIZE_SHIFT);
+                createdBytes.add(capacity);
+                buffer = ByteBuffer.allocateDirect(capacity);
+            }
+        }
+        usedBytes.add(buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    // 归还 buffer，归还后调用方不能再使用它，包括它的所有视图
+    public void release(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        usedBytes.add(-capacity);
+        if (!buffer.isDirect() || capacity > MAX_POOLED_SIZE || Integer.bitCount(capacity) != 1
+                || capacity < (1 << MIN_SIZE_SHIFT)) {
+            // 不是池中规格的 buffer，交给 GC 回收
+            return;
+        }
+        final int index = sizeClass(capacity);
+        if (threadCache.get().offer(index, buffer)) {
+            return;
+        }
+        if (sharedCounts[index].incrementAndGet() <= maxPooledPerClass) {
+            shared[index].offer(buffer);
+        } else {
+            // 池已经满了，交给 GC 回收
+            sharedCounts[index].decrementAndGet();
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SIZE_SHIFT)) {
+            return 0;
+        }
+        // 向上取到 2 的幂次
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    public long createdBytes() {
+        return createdBytes.sum();
+    }
+
+    public long usedBytes() {
+        return usedBytes.sum();
+    }
+
+    public String statistics() {
+        return "累计创建直接内存 " + createdBytes() + " 字节，当前借出 " + usedBytes() + " 字节";
+    }
+
+    // 线程本地缓存，只被所属线程访问，不需要同步
+    private final class ThreadCache {
+        final ByteBuffer[][] stacks = new ByteBuffer[SIZE_CLASSES][maxCachedPerThread];
+
+        final int[] sizes = new int[SIZE_CLASSES];
+
+        ByteBuffer poll(int index) {
+            if (sizes[index] == 0) {
+                return null;
+            }
+            final int top = --sizes[index];
+            final ByteBuffer buffer = stacks[index][top];
+            stacks[index][top] = null;
+            return buffer;
+        }
+
+        boolean offer(int index, ByteBuffer buffer) {
+            if (sizes[index] == maxCachedPerThread) {
+                return false;
+            }
+            stacks[index][sizes[index]++] = buffer;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+package eniso.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+// 读写索引分离的字节 buffer，思路与 Netty 的 ByteBuf 相同：
+// 0 <= readerIndex <= writerIndex <= capacity，[readerIndex, writerIndex) 是可读数据，[writerIndex, capacity) 是可写空间
+// 读写不需要 flip，写入空间不够时自动扩容（最大 maxCapacity），底层仍然是 ByteBuffer，可以直接交给通道读写
+// 不是线程安全的
+public class NIOByteBuf {
+
+    public static final int DEFAULT_INITIAL_CAPACITY = 256;
+
+    public static final int DEFAULT_MAX_CAPACITY = Integer.MAX_VALUE;
+
+    // 底层 buffer 的 position / limit 没有意义，所有访问都使用绝对位置
+    private ByteBuffer buffer;
+
+    private final boolean direct;
+
+    private final int maxCapacity;
+
+    private int readerIndex;
+
+    private int writerIndex;
+
+    private NIOByteBuf(ByteBuffer buffer, int maxCapacity) {
+        this.buffer = buffer;
+        this.direct = buffer.isDirect();
+        this.maxCapacity = maxCapacity;
+    }
+
+    public static NIOByteBuf allocate(int initialCapacity) {
+        return new NIOByteBuf(ByteBuffer.allocate(initialCapacity), DEFAULT_MAX_CAPACITY);
+    }
+
+    // 直接内存，与通道读写时不需要再经过 JDK 内部的临时直接内存
+    public static NIOByteBuf allocateDirect(int initialCapacity) {
+        return allocateDirect(initialCapacity, DEFAULT_MAX_CAPACITY);
+    }
+
+    public static NIOByteBuf allocateDirect(int initialCapacity, int maxCapacity) {
+        if (initialCapacity > maxCapacity) {
+            throw new IllegalArgumentException("initialCapacity: " + initialCapacity + " > maxCapacity: " + maxCapacity);
+        }
+        return new NIOByteBuf(ByteBuffer.allocateDirect(initialCapacity), maxCapacity);
+    }
+
+    // 包装 buffer 中 [position, limit) 的数据，不拷贝，作为可读数据，继续写入时会扩容到新的 buffer
+    public static NIOByteBuf wrap(ByteBuffer data) {
+        final NIOByteBuf buf = new NIOByteBuf(data.slice(), DEFAULT_MAX_CAPACITY);
+        buf.writerIndex = data.remaining();
+        return buf;
+    }
+
+    public int readerIndex() {
+        return readerIndex;
+    }
+
+    public NIOByteBuf readerIndex(int readerIndex) {
+        if (readerIndex < 0 || readerIndex > writerIndex) {
+            throw new IndexOutOfBoundsException("readerIndex: " + readerIndex + " (expected: 0 <= readerIndex <= " + writerIndex + ")");
+        }
+        this.readerIndex = readerIndex;
+        return this;
+    }
+
+    public int writerIndex() {
+        return writerIndex;
+    }
+
+    public NIOByteBuf writerIndex(int writerIndex) {
+        if (writerIndex < readerIndex || writerIndex > capacity()) {
+            throw new IndexOutOfBoundsException("writerIndex: " + writerIndex + " (expected: " + readerIndex + " <= writerIndex <= " + capacity() + ")");
+        }
+        this.writerIndex = writerIndex;
+        return this;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public int maxCapacity() {
+        return maxCapacity;
+    }
+
+    public int readableBytes() {
+        return writerIndex - readerIndex;
+    }
+
+    public int writableBytes() {
+        return capacity() - writerIndex;
+    }
+
+    public boolean isReadable() {
+        return writerIndex > readerIndex;
+    }
+
+    // 两个索引归零，不清除数据
+    public NIOByteBuf clear() {
+        readerIndex = writerIndex = 0;
+        return this;
+    }
+
+    // 丢弃已经读过的数据，把可读数据移动到开头，腾出可写空间
+    public NIOByteBuf discardReadBytes() {
+        if (readerIndex == 0) {
+            return this;
+        }
+        if (readerIndex != writerIndex) {
+            final ByteBuffer src = buffer.duplicate();
+            src.limit(writerIndex).position(readerIndex);
+            final ByteBuffer dst = buffer.duplicate();
+            dst.clear();
+            dst.put(src);
+        }
+        writerIndex -= readerIndex;
+        readerIndex = 0;
+        return this;
+    }
+
+    // 保证至少还能写入 minWritableBytes 个字节，不够时先尝试丢弃已读数据，再按 2 倍扩容
+    public NIOByteBuf ensureWritable(int minWritableBytes) {
+        if (minWritableBytes <= writableBytes()) {
+            return this;
+        }
+        if (minWritableBytes > maxCapacity - readableBytes()) {
+            throw new IndexOutOfBoundsException("minWritableBytes: " + minWritableBytes + " 超过最大容量 " + maxCapacity
+                    + "，可读 " + readableBytes() + " 字节");
+        }
+        if (readerIndex > 0 && (readerIndex >= capacity() >>> 1 || (long) writerIndex + minWritableBytes > maxCapacity)) {
+            // 已读数据占了一半以上，移动数据比扩容更划算；或者不丢弃已读数据，扩容到最大容量也放不下
+            discardReadBytes();
+            if (minWritableBytes <= writableBytes()) {
+                return this;
+            }
+        }
+        final int minCapacity = writerIndex + minWritableBytes;
+        int newCapacity = Math.max(capacity(), 64);
+        while (newCapacity < minCapacity) {
+            newCapacity = newCapacity << 1;
+            if (newCapacity <= 0) {
+                newCapacity = Integer.MAX_VALUE;
+                break;
+            }
+        }
+        newCapacity = Math.min(newCapacity, maxCapacity);
+        final ByteBuffer newBuffer = direct ? ByteBuffer.allocateDirect(newCapacity) : ByteBuffer.allocate(newCapacity);
+        final ByteBuffer src = buffer.duplicate();
+        src.limit(writerIndex).position(0);
+        newBuffer.put(src);
+        buffer = newBuffer;
+        return this;
+    }
+
+    // ---------- 按绝对位置读写，不改变索引 ----------
+
+    public byte getByte(int index) {
+        return buffer.get(index);
+    }
+
+    public int getInt(int index) {
+        return buffer.getInt(index);
+    }
+
+    public long getLong(int index) {
+        return buffer.getLong(index);
+    }
+
+    public NIOByteBuf setInt(int index, int value) {
+        buffer.putInt(index, value);
+        return this;
+    }
+
+    public NIOByteBuf setLong(int index, long value) {
+        buffer.putLong(index, value);
+        return this;
+    }
+
+    // ---------- 顺序读，移动 readerIndex ----------
+
+    public byte readByte() {
+        checkReadable(1);
+        return buffer.get(readerIndex++);
+    }
+
+    public int readInt() {
+        checkReadable(4);
+        final int value = buffer.getInt(readerIndex);
+        readerIndex += 4;
+        return value;
+    }
+
+    public long readLong() {
+        checkReadable(8);
+        final long value = buffer.getLong(readerIndex);
+        readerIndex += 8;
+        return value;
+    }
+
+    public NIOByteBuf readBytes(byte[] dst) {
+        return readBytes(dst, 0, dst.length);
+    }
+
+    public NIOByteBuf readBytes(byte[] dst, int offset, int length) {
+        checkReadable(length);
+        final ByteBuffer src = buffer.duplicate();
+        src.limit(readerIndex + length).position(readerIndex);
+        src.get(dst, offset, length);
+        readerIndex += length;
+        return this;
+    }
+
+    public NIOByteBuf skipBytes(int length) {
+        checkReadable(length);
+        readerIndex += length;
+        return this;
+    }
+
+    private void checkReadable(int length) {
+        if (length > readableBytes()) {
+            throw new IndexOutOfBoundsException("需要读取 " + length + " 字节，可读 " + readableBytes() + " 字节");
+        }
+    }
+
+    // ---------- 顺序写，移动 writerIndex，空间不够时自动扩容 ----------
+
+    public NIOByteBuf writeByte(int value) {
+        ensureWritable(1);
+        buffer.put(writerIndex++, (byte) value);
+        return this;
+    }
+
+    public NIOByteBuf writeInt(int value) {
+        ensureWritable(4);
+        buffer.putInt(writerIndex, value);
+        writerIndex += 4;
+        return this;
+    }
+
+    public NIOByteBuf writeLong(long value) {
+        ensureWritable(8);
+        buffer.putLong(writerIndex, value);
+        writerIndex += 8;
+        return this;
+    }
+
+    public NIOByteBuf writeBytes(byte[] src) {
+        return writeBytes(src, 0, src.length);
+    }
+
+    public NIOByteBuf writeBytes(byte[] src, int offset, int length) {
+        ensureWritable(length);
+        final ByteBuffer dst = buffer.duplicate();
+        dst.limit(writerIndex + length).position(writerIndex);
+        dst.put(src, offset, length);
+        writerIndex += length;
+        return this;
+    }
+
+    // 写入 src 中 [position, limit) 的数据，src 的 position 移动到 limit
+    public NIOByteBuf writeBytes(ByteBuffer src) {
+        final int length = src.remaining();
+        ensureWritable(length);
+        final ByteBuffer dst = buffer.duplicate();
+        dst.limit(writerIndex + length).position(writerIndex);
+        dst.put(src);
+        writerIndex += length;
+        return this;
+    }
+
+    // ---------- 与通道交互 ----------
+
+    // 从通道读取一次，最多 maxBytes 字节，写入空间不够时先扩容，返回读取的字节数，-1 表示对端已关闭
+    public int writeBytes(ReadableByteChannel channel, int maxBytes) throws IOException {
+        ensureWritable(maxBytes);
+        final ByteBuffer dst = buffer.duplicate();
+        dst.limit(writerIndex + maxBytes).position(writerIndex);
+        final int read = channel.read(dst);
+        if (read > 0) {
+            writerIndex += read;
+        }
+        return read;
+    }
+
+    // 把可读数据写入通道，写了多少 readerIndex 就前进多少，非阻塞通道可能只写入一部分
+    public int readBytes(WritableByteChannel channel) throws IOException {
+        final int written = channel.write(nioBuffer());
+        readerIndex += written;
+        return written;
+    }
+
+    // 可读数据 [readerIndex, writerIndex) 的视图，共享数据，不拷贝，不改变索引
+    // 扩容后视图仍然指向旧的内存，所以视图要在下一次写入之前用完，或者保证不会再扩容
+    public ByteBuffer nioBuffer() {
+        return nioBuffer(readerIndex, readableBytes());
+    }
+
+    public ByteBuffer nioBuffer(int index, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(index + length).position(index);
+        return view.slice();
+    }
+
+    public String toString(Charset charset) {
+        return charset.decode(nioBuffer()).toString();
+    }
+
+    @Override
+    public String toString() {
+        return "NIOByteBuf(ridx: " + readerIndex + ", widx: " + writerIndex + ", cap: " + capacity() + "/" + maxCapacity + ")";
+    }
+
+}
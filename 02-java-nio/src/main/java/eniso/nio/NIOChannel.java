@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
 
 public class NIOChannel {
 
@@ -114,12 +115,26 @@ public class NIOChannel {
         }
     }
 
+    private static void parallelCopy() {
+        // 大文件并行拷贝，示例中的文件很小，把区间设置为 8 字节，演示拆分为多个区间并行拷贝
+        try (NIOFileCopier copier = new NIOFileCopier()) {
+            copier.setChunkSize(8);
+            copier.setPreallocate(true);
+            copier.setProgressListener((copied, total) -> System.out.println(">>> total=" + total + ", copied=" + copied));
+            final long total = copier.copy(Paths.get("channel-01.txt"), Paths.get("channel-parallel.txt"));
+            System.out.println("并行拷贝完成 " + total + " 字节");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public static void main(String[] args) {
         write01();
         read01();
         copy01();
         zeroCopyTransferFrom();
         zeroCopyTransferTo();
+        parallelCopy();
     }
 
 }
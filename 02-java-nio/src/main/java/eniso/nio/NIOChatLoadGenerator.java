@@ -0,0 +1,470 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// 群聊服务器的压测工具：少量事件循环线程维护大量非阻塞连接，其中 senders 个连接按 rate 条/秒的总速率发送消息
+// 默认所有连接都在大厅，服务器把每条消息广播给其他所有连接（扇出为 connections - 1）；
+// 通过 roomSize 把连接按每 roomSize 个分到不同的房间，扇出变为 roomSize - 1，发送者轮流分布在各个房间中
+// 接收端根据消息末尾的时间戳计算端到端延迟
+// 时间戳使用 System.nanoTime()，发送端和接收端在同一个进程中，只能在本机回环地址上使用
+public class NIOChatLoadGenerator implements Runnable, Closeable {
+
+    // 服务器会把消息内容按字符串解码再编码，时间戳使用十六进制文本："|t=" + 16 位十六进制
+    private static final byte[] MARKER = "|t=".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int TIMESTAMP_LENGTH = MARKER.length + 16;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // 同时进行中的连接数，避免瞬间发起大量连接把服务器的 accept 队列打满
+    private static final int MAX_CONNECTING = 512;
+
+    private final InetSocketAddress address;
+
+    private final int connections;
+
+    private final int senders;
+
+    private final int rate;
+
+    private final int messageSize;
+
+    private final NIOEventLoopGroup group;
+
+    private final LoopState[] states;
+
+    private final Semaphore connecting = new Semaphore(MAX_CONNECTING);
+
+    private final LongAdder connected = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder sent = new LongAdder();
+
+    // 上一条消息还没有写完（发送缓冲区满），跳过的发送次数
+    private final LongAdder skipped = new LongAdder();
+
+    // 汇总所有事件循环的延迟，只在上报时访问
+    private final NIOLatencyHistogram interval = new NIOLatencyHistogram();
+
+    private final NIOLatencyHistogram total = new NIOLatencyHistogram();
+
+    private volatile long durationSeconds = 30;
+
+    // 每个房间的连接数，0 表示不分房间，所有连接都在大厅
+    private volatile int roomSize;
+
+    private volatile boolean stop;
+
+    public NIOChatLoadGenerator(String host, int port, int connections, int senders, int rate, int messageSize,
+                                int threads) throws IOException {
+        if (senders <= 0 || senders > connections) {
+            throw new IllegalArgumentException("senders: " + senders + ", connections: " + connections);
+        }
+        if (messageSize < TIMESTAMP_LENGTH) {
+            throw new IllegalArgumentException("messageSize: " + messageSize + " (expected: >= " + TIMESTAMP_LENGTH + ")");
+        }
+        this.address = new InetSocketAddress(host, port);
+        this.connections = connections;
+        this.senders = senders;
+        this.rate = rate;
+        this.messageSize = messageSize;
+        group = new NIOEventLoopGroup(threads, "load", this::handler);
+        states = new LoopState[threads];
+        for (int i = 0; i < threads; i++) {
+            states[i] = new LoopState(group.loops()[i]);
+        }
+    }
+
+    public void setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    // 需要在 run 之前调用
+    public void setRoomSize(int roomSize) {
+        if (roomSize < 0) {
+            throw new IllegalArgumentException("roomSize: " + roomSize + " (expected: >= 0)");
+        }
+        this.roomSize = roomSize;
+    }
+
+    private void handler(SelectionKey selectionKey) throws IOException {
+        final User user = (User) selectionKey.attachment();
+        final boolean connectable = selectionKey.isConnectable();
+        try {
+            if (connectable) {
+                user.channel.finishConnect();
+                selectionKey.interestOps(SelectionKey.OP_READ);
+                // 失败时由下面的 catch 归还配额
+                user.join();
+                connecting.release();
+                connected.increment();
+                return;
+            }
+            if (selectionKey.isWritable()) {
+                user.flush();
+            }
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                if (user.decoder.read(user.channel, user::onFrame) == -1) {
+                    throw new IOException("服务器断开连接");
+                }
+            }
+        } catch (IOException e) {
+            if (connectable) {
+                connecting.release();
+                failed.increment();
+            }
+            user.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        group.start();
+        try {
+            connectAll();
+            System.out.println("已建立 " + connected.sum() + " 个连接，失败 " + failed.sum() + " 个，开始发送：速率 "
+                    + rate + " 条/秒，消息 " + messageSize + " 字节，发送者 " + senders + " 个，"
+                    + (roomSize > 0 ? "每个房间 " + roomSize + " 个连接" : "全部在大厅"));
+            pace();
+            System.out.println("汇总：" + format(total) + "，发送 " + sent.sum() + " 条，跳过 " + skipped.sum() + " 条");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void connectAll() throws IOException, InterruptedException {
+        // 第 i 个连接进入第 i % rooms 个房间，前 senders 个连接是发送者，所以发送者也轮流分布在各个房间中
+        final int rooms = roomSize > 0 ? (connections + roomSize - 1) / roomSize : 0;
+        for (int i = 0; i < connections && !stop; i++) {
+            connecting.acquire();
+            final SocketChannel channel;
+            try {
+                channel = SocketChannel.open();
+            } catch (IOException e) {
+                // 通常是文件描述符耗尽，后面的连接也无法建立
+                connecting.release();
+                throw e;
+            }
+            final boolean connectedNow;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connectedNow = channel.connect(address);
+            } catch (IOException e) {
+                // 例如服务器拒绝连接、本地端口耗尽，关闭通道、归还配额，继续建立其他连接
+                NIOEventLoop.closeQuietly(channel);
+                connecting.release();
+                failed.increment();
+                continue;
+            }
+            if (connectedNow) {
+                connecting.release();
+                connected.increment();
+            }
+            final LoopState state = states[i % states.length];
+            final User user = new User(channel, state, i < senders, rooms > 0 ? "load-" + i % rooms : null);
+            state.loop.execute(() -> {
+                try {
+                    channel.register(state.loop.selector(), connectedNow ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, user);
+                    if (user.sender) {
+                        state.senders.add(user);
+                    }
+                    if (connectedNow) {
+                        user.join();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    user.close();
+                    if (connectedNow) {
+                        connected.decrement();
+                    } else {
+                        // 连接还在进行中，不会再收到 OP_CONNECT，在这里归还配额
+                        connecting.release();
+                    }
+                    failed.increment();
+                }
+            });
+            if ((i + 1) % 1000 == 0) {
+                System.out.println("正在连接 " + (i + 1) + " / " + connections);
+            }
+        }
+        // 等待进行中的连接完成
+        connecting.acquire(MAX_CONNECTING);
+        connecting.release(MAX_CONNECTING);
+    }
+
+    // 按总速率发放发送配额，每毫秒一次，每个事件循环一次 execute，由事件循环轮流选择自己的发送者发送
+    private void pace() throws InterruptedException {
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long issued = 0;
+        int cursor = 0;
+        final int[] quota = new int[states.length];
+        while (!stop) {
+            final long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            final long due = (now - start) * rate / TimeUnit.SECONDS.toNanos(1) - issued;
+            for (long i = 0; i < due; i++) {
+                quota[cursor++ % states.length]++;
+            }
+            issued += due;
+            for (int i = 0; i < states.length; i++) {
+                if (quota[i] > 0) {
+                    states[i].quota.addAndGet(quota[i]);
+                    states[i].loop.execute(states[i]::sendDue);
+                    quota[i] = 0;
+                }
+            }
+            if (now >= nextReport) {
+                report();
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        report();
+    }
+
+    // 由各个事件循环把自己的直方图合并到 interval 中，直方图只在所属线程中修改，不需要加锁
+    private void report() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(states.length);
+        for (LoopState state : states) {
+            state.loop.execute(() -> {
+                synchronized (interval) {
+                    interval.add(state.histogram);
+                }
+                state.histogram.reset();
+                latch.countDown();
+            });
+        }
+        latch.await(1, TimeUnit.SECONDS);
+        synchronized (interval) {
+            System.out.println("连接 " + connected.sum() + "，" + format(interval));
+            total.add(interval);
+            interval.reset();
+        }
+    }
+
+    private static String format(NIOLatencyHistogram histogram) {
+        return "收到 " + histogram.count() + " 条，延迟(us) p50=" + histogram.percentile(50) / 1000
+                + " p99=" + histogram.percentile(99) / 1000 + " p99.9=" + histogram.percentile(99.9) / 1000
+                + " max=" + histogram.max() / 1000;
+    }
+
+    public void stop() {
+        stop = true;
+    }
+
+    @Override
+    public void close() {
+        stop = true;
+        // 关闭事件循环时会关闭所有连接
+        group.close();
+    }
+
+    // 每个事件循环的状态，只在事件循环线程中修改
+    private static final class LoopState {
+        final NIOEventLoop loop;
+
+        final List<User> senders = new ArrayList<>();
+
+        final NIOLatencyHistogram histogram = new NIOLatencyHistogram();
+
+        // 发放给本事件循环、还没有发送的消息数
+        final AtomicInteger quota = new AtomicInteger();
+
+        int cursor;
+
+        LoopState(NIOEventLoop loop) {
+            this.loop = loop;
+        }
+
+        void sendDue() {
+            int due = quota.getAndSet(0);
+            if (senders.isEmpty()) {
+                return;
+            }
+            while (due-- > 0) {
+                senders.get(cursor++ % senders.size()).send();
+            }
+        }
+
+        void onFrame(ByteBuffer frame) {
+            final int limit = frame.limit();
+            final int start = limit - TIMESTAMP_LENGTH;
+            if (start < frame.position()) {
+                return;
+            }
+            for (int i = 0; i < MARKER.length; i++) {
+                if (frame.get(start + i) != MARKER[i]) {
+                    // 上线、下线等不是压测发送的消息
+                    return;
+                }
+            }
+            long timestamp = 0;
+            for (int i = start + MARKER.length; i < limit; i++) {
+                final int c = frame.get(i);
+                timestamp = (timestamp << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+            }
+            histogram.record(System.nanoTime() - timestamp);
+        }
+    }
+
+    private final class User {
+        final SocketChannel channel;
+
+        final LoopState state;
+
+        final boolean sender;
+
+        // 连接建立后进入的房间，为 null 时留在大厅
+        final String room;
+
+        final NIOFrameDecoder decoder = new NIOFrameDecoder();
+
+        // 发送者复用同一个帧，每次只改写末尾的时间戳
+        final ByteBuffer out;
+
+        // 心跳回复（空帧），和 out 一起通过 flush 按顺序写出，写不完时等待 OP_WRITE，不会和消息交错
+        final ByteBuffer heartbeat = ByteBuffer.allocate(NIOFrameDecoder.HEADER_LENGTH);
+
+        // 聚集写：心跳回复只在 out 没有待发送数据时加入，排在 out 前面不会打断写了一半的消息
+        final ByteBuffer[] outbound;
+
+        User(SocketChannel channel, LoopState state, boolean sender, String room) {
+            this.channel = channel;
+            this.state = state;
+            this.sender = sender;
+            this.room = room;
+            if (sender) {
+                out = ByteBuffer.allocateDirect(NIOFrameDecoder.HEADER_LENGTH + messageSize);
+                out.putInt(messageSize);
+                while (out.position() < out.capacity() - TIMESTAMP_LENGTH) {
+                    out.put((byte) 'x');
+                }
+                out.put(MARKER);
+                // 初始没有待发送的数据
+                out.position(out.capacity());
+            } else {
+                out = null;
+            }
+            // 初始没有待发送的心跳回复
+            heartbeat.position(heartbeat.capacity());
+            outbound = sender ? new ByteBuffer[]{heartbeat, out} : new ByteBuffer[]{heartbeat};
+        }
+
+        void onFrame(ByteBuffer frame) throws IOException {
+            if (frame.hasRemaining()) {
+                state.onFrame(frame);
+                return;
+            }
+            // 服务器的心跳，回复一个空帧，否则只接收的用户会被当作失联断开
+            // 发送者还有半条消息没写完时不能插入，它在持续发送，服务器不会认为它空闲；上一个回复还没写完时也不再追加
+            if (!heartbeat.hasRemaining() && (!sender || !out.hasRemaining())) {
+                // 长度为 0 的帧，4 个字节都是 0
+                heartbeat.clear();
+                heartbeat.putInt(0, 0);
+                // 在读回调中，写失败时抛出，由 handler 统一关闭
+                write();
+            }
+        }
+
+        // 连接建立后发送 /join 命令，新连接的发送缓冲区是空的，一次 write 一定能写完这一小帧
+        void join() throws IOException {
+            if (room != null) {
+                channel.write(NIOFrameEncoder.encode("/join " + room));
+            }
+        }
+
+        void send() {
+            if (!channel.isConnected()) {
+                return;
+            }
+            if (out.hasRemaining()) {
+                // 上一条消息还没有写完，发送速度超过了连接的能力
+                skipped.increment();
+                return;
+            }
+            long timestamp = System.nanoTime();
+            for (int i = out.capacity() - 1; i >= out.capacity() - 16; i--) {
+                out.put(i, HEX[(int) (timestamp & 0xF)]);
+                timestamp >>>= 4;
+            }
+            out.clear();
+            sent.increment();
+            flush();
+        }
+
+        void flush() {
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write() throws IOException {
+            channel.write(outbound);
+            final boolean pending = heartbeat.hasRemaining() || (sender && out.hasRemaining());
+            final SelectionKey key = channel.keyFor(state.loop.selector());
+            if (key != null && key.isValid()) {
+                key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            decoder.release();
+            final SelectionKey key = channel.keyFor(state.loop.selector());
+            if (key != null) {
+                key.cancel();
+            }
+            NIOEventLoop.closeQuietly(channel);
+            if (sender) {
+                state.senders.remove(this);
+            }
+        }
+    }
+
+    // 参数：[host] [port] [connections] [senders] [rate] [messageSize] [seconds] [threads] [roomSize]
+    // 连接数很多时需要调大 ulimit -n，服务端 worker 的待发送水位也需要相应调整
+    public static void main(String[] args) {
+        final String host = args.length > 0 ? args[0] : "127.0.0.1";
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        final int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        final int senders = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        final int rate = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        final int messageSize = args.length > 5 ? Integer.parseInt(args[5]) : 64;
+        final long seconds = args.length > 6 ? Long.parseLong(args[6]) : 30;
+        final int threads = args.length > 7 ? Integer.parseInt(args[7]) : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        final int roomSize = args.length > 8 ? Integer.parseInt(args[8]) : 0;
+        try (NIOChatLoadGenerator generator = new NIOChatLoadGenerator(host, port, connections, senders, rate,
+                messageSize, threads)) {
+            generator.setDurationSeconds(seconds);
+            generator.setRoomSize(roomSize);
+            generator.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+package eniso.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// 聊天室索引：房间名 -> 按事件循环分区的成员数组
+// 加入、离开都是在 compute 中复制一份新数组（copy-on-write），发布时只读数组，不加锁
+// 每个事件循环只写自己的连接，发布消息时只把任务提交给有成员的事件循环，代价是 O(成员数)，与服务器的总连接数无关
+public final class NIOChatRoomIndex {
+
+    public static final String LOBBY = "lobby";
+
+    private static final NIOConnection[] EMPTY = new NIOConnection[0];
+
+    private final NIOEventLoop[] loops;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    public NIOChatRoomIndex(NIOEventLoop[] loops) {
+        this.loops = loops;
+    }
+
+    // 可以在任意线程调用，已经是成员或者连接已经关闭时返回 false
+    public boolean join(String room, NIOConnection connection) {
+        final int partition = partition(connection.loop());
+        final boolean[] joined = new boolean[1];
+        rooms.compute(room, (name, current) -> {
+            final Room r = current == null ? new Room(loops.length) : current;
+            final NIOConnection[] members = r.members.get(partition);
+            if (indexOf(members, connection) >= 0) {
+                return current;
+            }
+            // 先在连接上记录房间，再检查是否已经关闭；关闭时先设置 closed，再按连接记录的房间离开（leaveAll）
+            // 两边至少有一方能看到对方的写入：这里看到已经关闭就撤销；否则关闭的一方会离开这个房间，
+            // 它的 leave 与这里的 compute 在同一个 key 上串行执行，一定能看到这里加入的成员
+            connection.joined(room);
+            if (connection.isClosed()) {
+                connection.left(room);
+                return current;
+            }
+            final NIOConnection[] copy = new NIOConnection[members.length + 1];
+            System.arraycopy(members, 0, copy, 0, members.length);
+            copy[members.length] = connection;
+            r.members.set(partition, copy);
+            r.size++;
+            joined[0] = true;
+            return r;
+        });
+        return joined[0];
+    }
+
+    // 可以在任意线程调用，房间没有成员后从索引中删除
+    public boolean leave(String room, NIOConnection connection) {
+        final int partition = partition(connection.loop());
+        final boolean[] left = new boolean[1];
+        rooms.computeIfPresent(room, (name, r) -> {
+            final NIOConnection[] members = r.members.get(partition);
+            final int index = indexOf(members, connection);
+            if (index < 0) {
+                return r;
+            }
+            final NIOConnection[] copy = members.length == 1 ? EMPTY : new NIOConnection[members.length - 1];
+            System.arraycopy(members, 0, copy, 0, index);
+            System.arraycopy(members, index + 1, copy, index, members.length - index - 1);
+            r.members.set(partition, copy);
+            r.size--;
+            left[0] = true;
+            return r.size == 0 ? null : r;
+        });
+        if (left[0]) {
+            connection.left(room);
+        }
+        return left[0];
+    }
+
+    // 离开连接加入的所有房间，连接关闭时调用，代价是 O(加入的房间数 * 成员数)
+    public void leaveAll(NIOConnection connection) {
+        // 遍历的是 copy-on-write 数组的快照，遍历期间可以离开
+        for (String room : connection.roomArray()) {
+            leave(room, connection);
+        }
+    }
+
+    // 可以在任意线程调用，excluded 为 null 时发送给所有成员
+    // 消息由调用方持有的引用保证在本方法返回前有效，投递任务各自持有一个引用
+    // 当前事件循环的成员直接发送消息的帧，不创建任何对象；其他事件循环每个创建一个视图和一个任务，与成员数无关
+    public int publish(String room, NIOConnection excluded, NIOBroadcastMessage message) {
+        final Room r = rooms.get(room);
+        if (r == null) {
+            return 0;
+        }
+        int loopsNotified = 0;
+        for (int i = 0; i < loops.length; i++) {
+            if (r.members.get(i).length == 0) {
+                // 该事件循环上没有成员，不提交任务，也不唤醒它的 Selector
+                continue;
+            }
+            final NIOEventLoop loop = loops[i];
+            final int partition = i;
+            if (loop.inEventLoop()) {
+                deliver(r, partition, excluded, message, message.frame());
+            } else {
+                message.retain();
+                // 在当前线程创建视图，之后各个事件循环只修改自己视图的 position
+                final ByteBuffer view = message.duplicate();
+                loop.execute(() -> {
+                    try {
+                        deliver(r, partition, excluded, message, view);
+                    } finally {
+                        message.release();
+                    }
+                });
+            }
+            loopsNotified++;
+        }
+        return loopsNotified;
+    }
+
+    // 在事件循环线程中执行，读取执行时的成员数组，提交之后离开的成员不会再收到消息
+    private static void deliver(Room room, int partition, NIOConnection excluded, NIOBroadcastMessage message,
+                                ByteBuffer view) {
+        for (NIOConnection member : room.members.get(partition)) {
+            if (member != excluded) {
+                member.write(message, view);
+            }
+        }
+    }
+
+    public Set<String> rooms() {
+        return rooms.keySet();
+    }
+
+    public int size(String room) {
+        final Room r = rooms.get(room);
+        return r == null ? 0 : r.size;
+    }
+
+    private int partition(NIOEventLoop loop) {
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] == loop) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("连接不属于索引中的事件循环: " + loop.name());
+    }
+
+    private static int indexOf(NIOConnection[] members, NIOConnection connection) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == connection) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Room {
+        // 下标与 loops 一致，元素只在 compute 中替换，发布时直接读取
+        final AtomicReferenceArray<NIOConnection[]> members;
+
+        // 只在 compute 中修改
+        volatile int size;
+
+        Room(int partitions) {
+            members = new AtomicReferenceArray<>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                members.set(i, EMPTY);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package eniso.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+// 组合 buffer：把多段 ByteBuffer 拼成一个逻辑上连续的消息，只保存各段的视图，不拷贝数据
+// 例如 帧头 + 内容、响应头 + 响应体，组合后通过 nioBuffers() 交给一次 Gathering write 发送
+// 各段在发送完成之前不能修改，不是线程安全的
+public class NIOCompositeByteBuf {
+
+    // 一次 Gathering write 最多传入的 buffer 数，Linux 的 IOV_MAX 为 1024，JDK 也会按这个值截断
+    public static final int MAX_GATHERING_BUFFERS = 1024;
+
+    // [head, tail) 是还没有读完（发送完）的部分，每段都处于读模式
+    private ByteBuffer[] components;
+
+    private int head;
+
+    private int tail;
+
+    private long readableBytes;
+
+    public NIOCompositeByteBuf() {
+        this(16);
+    }
+
+    public NIOCompositeByteBuf(int initialComponents) {
+        components = new ByteBuffer[Math.max(2, initialComponents)];
+    }
+
+    // 追加 data 中 [position, limit) 的视图，不改变 data 的 position
+    public NIOCompositeByteBuf addComponent(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            return this;
+        }
+        if (tail == components.length) {
+            if (head > 0) {
+                // 前面已经发送完的位置可以复用
+                System.arraycopy(components, head, components, 0, tail - head);
+                Arrays.fill(components, tail - head, tail, null);
+                tail -= head;
+                head = 0;
+            } else {
+                components = Arrays.copyOf(components, components.length << 1);
+            }
+        }
+        components[tail++] = data.slice();
+        readableBytes += data.remaining();
+        return this;
+    }
+
+    // 追加可读数据的视图，之后 buf 扩容不影响已经追加的数据
+    public NIOCompositeByteBuf addComponent(NIOByteBuf buf) {
+        return addComponent(buf.nioBuffer());
+    }
+
+    public NIOCompositeByteBuf addComponents(ByteBuffer... data) {
+        for (ByteBuffer buffer : data) {
+            addComponent(buffer);
+        }
+        return this;
+    }
+
+    public int numComponents() {
+        return tail - head;
+    }
+
+    public long readableBytes() {
+        return readableBytes;
+    }
+
+    public boolean isReadable() {
+        return readableBytes > 0;
+    }
+
+    // 按逻辑位置读取一个字节，index 从当前可读数据的开头算起
+    public byte getByte(long index) {
+        if (index < 0 || index >= readableBytes) {
+            throw new IndexOutOfBoundsException("index: " + index + "，可读 " + readableBytes + " 字节");
+        }
+        for (int i = head; i < tail; i++) {
+            final ByteBuffer component = components[i];
+            if (index < component.remaining()) {
+                return component.get(component.position() + (int) index);
+            }
+            index -= component.remaining();
+        }
+        throw new IllegalStateException();
+    }
+
+    // 拷贝读取，跨越多段时依次拷贝，读完的段被移除
+    public NIOCompositeByteBuf readBytes(byte[] dst, int offset, int length) {
+        if (length > readableBytes) {
+            throw new IndexOutOfBoundsException("需要读取 " + length + " 字节，可读 " + readableBytes + " 字节");
+        }
+        while (length > 0) {
+            final ByteBuffer component = components[head];
+            final int n = Math.min(length, component.remaining());
+            component.get(dst, offset, n);
+            offset += n;
+            length -= n;
+            readableBytes -= n;
+            discardRead();
+        }
+        return this;
+    }
+
+    // 当前所有未发送的段，可以直接传给 GatheringByteChannel#write(ByteBuffer[])
+    // 数组是新的，元素是内部的视图，外部写入后 position 的变化会反映到本对象中，之后调用 discardReadComponents 同步
+    public ByteBuffer[] nioBuffers() {
+        return Arrays.copyOfRange(components, head, tail);
+    }
+
+    // 移除已经读完的段，并重新统计可读字节数，用于通过 nioBuffers() 在外部写入之后
+    public NIOCompositeByteBuf discardReadComponents() {
+        discardRead();
+        readableBytes = 0;
+        for (int i = head; i < tail; i++) {
+            readableBytes += components[i].remaining();
+        }
+        return this;
+    }
+
+    // 一次 Gathering write 发送尽可能多的数据，返回写入的字节数，非阻塞通道可能只写入一部分
+    public long readBytes(GatheringByteChannel channel) throws IOException {
+        long total = 0;
+        while (head < tail) {
+            final int length = Math.min(tail - head, MAX_GATHERING_BUFFERS);
+            final long written = channel.write(components, head, length);
+            total += written;
+            readableBytes -= written;
+            discardRead();
+            if (written == 0 || head < tail && length < MAX_GATHERING_BUFFERS) {
+                // 没有写完，发送缓冲区已满
+                break;
+            }
+        }
+        return total;
+    }
+
+    // 合并为一个新的 heap buffer，只在需要连续内存时使用，会拷贝所有数据
+    public ByteBuffer consolidate() {
+        if (readableBytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("数据超过 2GB，不能合并");
+        }
+        final ByteBuffer merged = ByteBuffer.allocate((int) readableBytes);
+        for (int i = head; i < tail; i++) {
+            merged.put(components[i].duplicate());
+        }
+        merged.flip();
+        return merged;
+    }
+
+    public NIOCompositeByteBuf clear() {
+        Arrays.fill(components, head, tail, null);
+        head = tail = 0;
+        readableBytes = 0;
+        return this;
+    }
+
+    private void discardRead() {
+        while (head < tail && !components[head].hasRemaining()) {
+            components[head++] = null;
+        }
+        if (head == tail) {
+            head = tail = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NIOCompositeByteBuf(components: " + numComponents() + ", readable: " + readableBytes + ")";
+    }
+
+}
@@ -0,0 +1,490 @@
+package eniso.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class NIOConnection {
+
+    // 待发送数据超过高水位后的处理策略
+    public enum OverflowPolicy {
+        // 不再接收广播消息，直到待发送数据降到低水位以下
+        DROP,
+        // 直接断开连接
+        DISCONNECT
+    }
+
+    // 连接关闭后回调，在事件循环线程中执行，无论是主动关闭、写失败、积压断开还是注册失败都会回调一次
+    public interface CloseListener {
+        void onClose(NIOConnection connection);
+    }
+
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    // 一次 Gathering write 最多合并的待发送 buffer 数
+    private static final int MAX_GATHERING = 64;
+
+    private static final String[] NO_ROOMS = new String[0];
+
+    private final SocketChannel channel;
+
+    // 连接所属的事件循环，连接的所有读写都只能在这个事件循环线程中进行
+    private final NIOEventLoop loop;
+
+    // 连接建立时缓存的远程地址，用于日志和消息前缀，避免每次读取都创建字符串
+    private final String label;
+
+    // 每个连接一个解码器，累积半包数据
+    private final NIOFrameDecoder decoder;
+
+    private CloseListener closeListener;
+
+    // 连接建立时设置的帧处理器，每次读取复用，不需要每次创建 lambda
+    private NIOFrameDecoder.FrameHandler frameHandler;
+
+    // 待发送队列，当 Socket 发送缓冲区满时，剩余的数据在这里排队，等待 OP_WRITE 事件
+    // 环形数组，容量是 2 的幂次，两个数组的下标一一对应，普通消息的 message 为 null，入队、出队都不创建对象
+    private ByteBuffer[] outboundBuffers = new ByteBuffer[16];
+
+    private NIOBroadcastMessage[] outboundMessages = new NIOBroadcastMessage[16];
+
+    private int outboundHead;
+
+    private int outboundSize;
+
+    // flush 时复用的数组，待发送队列中的多个 buffer 通过一次 Gathering write 发送
+    private final ByteBuffer[] gathering = new ByteBuffer[MAX_GATHERING];
+
+    private final int lowWaterMark;
+
+    private final int highWaterMark;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private long pendingBytes;
+
+    private boolean writable = true;
+
+    // 只在所属的事件循环线程中修改；volatile 是为了让其他线程加入房间时能看到连接已经关闭（见 NIOChatRoomIndex#join）
+    private volatile boolean closed;
+
+    // 是否已经注册到 Selector 上，只有注册成功的连接才计入事件循环的连接数
+    private boolean registered;
+
+    // 连接级别的累计读写字节数，只在事件循环线程中修改
+    private long bytesRead;
+
+    private long bytesWritten;
+
+    // 最后一次读到数据、写出数据的时间（System.nanoTime），用于空闲检测
+    private long lastReadNanos;
+
+    private long lastWriteNanos;
+
+    private NIOIdleStateMonitor.Watcher idleWatcher;
+
+    // 连接加入的房间，由 NIOChatRoomIndex 维护，可能在其他线程修改
+    // 修改时复制一份新数组（copy-on-write），事件循环按下标遍历，不需要创建 Iterator
+    private volatile String[] rooms = NO_ROOMS;
+
+    // 按房间缓存的消息前缀，切换房间后才需要重新编码，只在事件循环线程中访问
+    private String prefixRoom;
+
+    private byte[] prefix;
+
+    public NIOConnection(SocketChannel channel, NIOEventLoop loop) {
+        this(channel, loop, DEFAULT_LOW_WATER_MARK, DEFAULT_HIGH_WATER_MARK, OverflowPolicy.DROP);
+    }
+
+    public NIOConnection(SocketChannel channel, NIOEventLoop loop,
+                         int lowWaterMark, int highWaterMark, OverflowPolicy overflowPolicy) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark: " + lowWaterMark + ", highWaterMark: " + highWaterMark);
+        }
+        this.channel = channel;
+        this.loop = loop;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.overflowPolicy = overflowPolicy;
+        label = remoteLabel(channel);
+        decoder = new NIOFrameDecoder();
+        lastReadNanos = lastWriteNanos = System.nanoTime();
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public NIOEventLoop loop() {
+        return loop;
+    }
+
+    public NIOFrameDecoder decoder() {
+        return decoder;
+    }
+
+    // 远程地址，例如 127.0.0.1:52345
+    public String label() {
+        return label;
+    }
+
+    private static String remoteLabel(SocketChannel channel) {
+        try {
+            return channel.getRemoteAddress().toString().substring(1);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    // 是否还可以继续接收消息，超过高水位后变为 false，降到低水位以下后恢复
+    public boolean isWritable() {
+        return writable;
+    }
+
+    // 连接已经关闭，可以在任意线程调用
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long pendingBytes() {
+        return pendingBytes;
+    }
+
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    public long lastReadNanos() {
+        return lastReadNanos;
+    }
+
+    public long lastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    // 返回的是快照，遍历期间可以加入、离开房间
+    public Set<String> rooms() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(rooms)));
+    }
+
+    // 内部数组，调用方不能修改，用于热路径上的遍历
+    String[] roomArray() {
+        return rooms;
+    }
+
+    synchronized void joined(String room) {
+        final String[] current = rooms;
+        for (String r : current) {
+            if (r.equals(room)) {
+                return;
+            }
+        }
+        final String[] copy = Arrays.copyOf(current, current.length + 1);
+        copy[current.length] = room;
+        rooms = copy;
+    }
+
+    synchronized void left(String room) {
+        final String[] current = rooms;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(room)) {
+                final String[] copy = current.length == 1 ? NO_ROOMS : new String[current.length - 1];
+                System.arraycopy(current, 0, copy, 0, i);
+                System.arraycopy(current, i + 1, copy, i, current.length - i - 1);
+                rooms = copy;
+                return;
+            }
+        }
+    }
+
+    // 缓存的前缀不是这个房间的时返回 null
+    byte[] prefix(String room) {
+        return room.equals(prefixRoom) ? prefix : null;
+    }
+
+    void prefix(String room, byte[] prefix) {
+        this.prefixRoom = room;
+        this.prefix = prefix;
+    }
+
+    public void setFrameHandler(NIOFrameDecoder.FrameHandler frameHandler) {
+        this.frameHandler = frameHandler;
+    }
+
+    // 需要在 register 之前设置
+    public void setCloseListener(CloseListener closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    // 注册到所属事件循环的 Selector 上，可以在任意线程调用，注册在事件循环线程中完成
+    // 注册之前可能已经有消息写入了一部分，剩余的数据在队列中，注册时一起关注 OP_WRITE；注册失败时关闭连接
+    public void register(int ops) {
+        loop.execute(() -> {
+            if (closed) {
+                return;
+            }
+            try {
+                channel.register(loop.selector(), outboundSize > 0 ? ops | SelectionKey.OP_WRITE : ops, this);
+                // 注册成功才计入连接数，注册失败关闭时也不会减少
+                registered = true;
+                loop.metrics().connectionOpened();
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        });
+    }
+
+    void setIdleWatcher(NIOIdleStateMonitor.Watcher idleWatcher) {
+        if (this.idleWatcher != null) {
+            this.idleWatcher.cancel();
+        }
+        this.idleWatcher = idleWatcher;
+        if (closed) {
+            idleWatcher.cancel();
+        }
+    }
+
+    // 从通道读取一次，交给解码器拆分为帧，同时记录读取的字节数
+    public int read(NIOFrameDecoder.FrameHandler handler) throws IOException {
+        final int read = decoder.read(channel, handler);
+        if (read > 0) {
+            lastReadNanos = System.nanoTime();
+            bytesRead += read;
+            loop.metrics().read(read);
+        }
+        return read;
+    }
+
+    // 使用 setFrameHandler 设置的处理器读取
+    public int read() throws IOException {
+        return read(frameHandler);
+    }
+
+    // 发送数据，只能在所属的事件循环线程中调用，返回 false 表示消息被丢弃
+    public boolean write(ByteBuffer buffer) {
+        return write(buffer, null);
+    }
+
+    // 发送广播消息，数据与其他接收者共享，全部写完（或者被丢弃）后释放引用
+    public boolean write(NIOBroadcastMessage message) {
+        return write(message, message.duplicate());
+    }
+
+    // view 是 message 的完整帧，同一个事件循环中的接收者共用，写完后恢复 position
+    // 没有积压时直接写 view，一次写完就不需要创建视图，也不需要修改引用计数；只写入一部分时，剩余部分才创建视图进入队列
+    boolean write(NIOBroadcastMessage message, ByteBuffer view) {
+        if (!channel.isOpen() || (!writable && overflowPolicy == OverflowPolicy.DROP)) {
+            return false;
+        }
+        message.delivered();
+        if (outboundSize > 0) {
+            // 已经有积压的数据，排在后面
+            return write(view.duplicate(), message.retain());
+        }
+        final int position = view.position();
+        try {
+            final int written = channel.write(view);
+            bytesWritten += written;
+            if (written > 0) {
+                lastWriteNanos = System.nanoTime();
+            }
+            loop.metrics().written(written);
+            if (!view.hasRemaining()) {
+                return true;
+            }
+            // Socket 发送缓冲区已满，剩余部分进入待发送队列，等待 OP_WRITE
+            loop.metrics().partialWrite();
+            if (!enqueue(view.duplicate(), message.retain())) {
+                return false;
+            }
+            setWriteInterest(true);
+            checkHighWaterMark();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return false;
+        } finally {
+            view.position(position);
+        }
+    }
+
+    private boolean write(ByteBuffer buffer, NIOBroadcastMessage message) {
+        if (!enqueue(buffer, message)) {
+            return false;
+        }
+        if (outboundSize == 1) {
+            // 之前没有积压的数据，直接尝试写入，大部分情况下可以一次写完
+            flush();
+        }
+        checkHighWaterMark();
+        return true;
+    }
+
+    private boolean enqueue(ByteBuffer buffer, NIOBroadcastMessage message) {
+        if (!channel.isOpen()) {
+            release(message);
+            return false;
+        }
+        if (!writable) {
+            // 慢连接，已经积压了太多数据，不能让它继续占用内存
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                close();
+            }
+            release(message);
+            return false;
+        }
+        if (outboundSize == outboundBuffers.length) {
+            growOutbound();
+        }
+        final int tail = (outboundHead + outboundSize) & (outboundBuffers.length - 1);
+        outboundBuffers[tail] = buffer;
+        outboundMessages[tail] = message;
+        outboundSize++;
+        pendingBytes += buffer.remaining();
+        loop.metrics().pending(buffer.remaining());
+        return true;
+    }
+
+    // 按队列顺序复制到新数组的开头
+    private void growOutbound() {
+        final int capacity = outboundBuffers.length;
+        final ByteBuffer[] buffers = new ByteBuffer[capacity << 1];
+        final NIOBroadcastMessage[] messages = new NIOBroadcastMessage[capacity << 1];
+        final int first = capacity - outboundHead;
+        System.arraycopy(outboundBuffers, outboundHead, buffers, 0, first);
+        System.arraycopy(outboundBuffers, 0, buffers, first, outboundHead);
+        System.arraycopy(outboundMessages, outboundHead, messages, 0, first);
+        System.arraycopy(outboundMessages, 0, messages, first, outboundHead);
+        outboundBuffers = buffers;
+        outboundMessages = messages;
+        outboundHead = 0;
+    }
+
+    // 移除队头，返回它的广播消息（可能为 null），由调用方释放
+    private NIOBroadcastMessage pollOutbound() {
+        final NIOBroadcastMessage message = outboundMessages[outboundHead];
+        outboundBuffers[outboundHead] = null;
+        outboundMessages[outboundHead] = null;
+        outboundHead = (outboundHead + 1) & (outboundBuffers.length - 1);
+        outboundSize--;
+        return message;
+    }
+
+    private void checkHighWaterMark() {
+        if (pendingBytes > highWaterMark) {
+            writable = false;
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                System.err.println("连接 " + channel + " 积压 " + pendingBytes + " 字节，断开连接");
+                close();
+            }
+        }
+    }
+
+    // 将待发送队列中的数据写入通道，OP_WRITE 事件发生时调用
+    public void flush() {
+        try {
+            while (outboundSize > 0) {
+                // 积压的多个 buffer 合并为一次 Gathering write
+                final int count = Math.min(outboundSize, MAX_GATHERING);
+                final int mask = outboundBuffers.length - 1;
+                for (int i = 0; i < count; i++) {
+                    gathering[i] = outboundBuffers[(outboundHead + i) & mask];
+                }
+                final long written = channel.write(gathering, 0, count);
+                Arrays.fill(gathering, 0, count, null);
+                pendingBytes -= written;
+                bytesWritten += written;
+                if (written > 0) {
+                    lastWriteNanos = System.nanoTime();
+                }
+                loop.metrics().written(written);
+                loop.metrics().pending(-written);
+                while (outboundSize > 0 && !outboundBuffers[outboundHead].hasRemaining()) {
+                    release(pollOutbound());
+                }
+                if (outboundSize > 0 && count < MAX_GATHERING || written == 0) {
+                    // Socket 发送缓冲区已满，只写入了部分数据，等待下一次 OP_WRITE
+                    loop.metrics().partialWrite();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return;
+        }
+
+        if (outboundSize == 0) {
+            // 数据已经写完，不再关注 OP_WRITE，否则只要发送缓冲区有空间，select 就会不停返回
+            setWriteInterest(false);
+        } else {
+            setWriteInterest(true);
+        }
+        if (!writable && pendingBytes <= lowWaterMark) {
+            writable = true;
+        }
+    }
+
+    private void setWriteInterest(boolean interested) {
+        // 通过 keyFor 获取，无论连接注册在哪个 Selector 上都能拿到正确的 SelectionKey
+        final SelectionKey key = channel.keyFor(loop.selector());
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        final int ops = key.interestOps();
+        if (interested && (ops & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(ops | SelectionKey.OP_WRITE);
+        } else if (!interested && (ops & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(ops & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (registered) {
+            loop.metrics().connectionClosed();
+        }
+        if (idleWatcher != null) {
+            // O(1) 取消时间轮中的定时任务
+            idleWatcher.cancel();
+            idleWatcher = null;
+        }
+        while (outboundSize > 0) {
+            release(pollOutbound());
+        }
+        loop.metrics().pending(-pendingBytes);
+        pendingBytes = 0;
+        decoder.release();
+        final SelectionKey key = channel.keyFor(loop.selector());
+        if (key != null) {
+            key.cancel();
+        }
+        NIOEventLoop.closeQuietly(channel);
+        if (closeListener != null) {
+            closeListener.onClose(this);
+        }
+    }
+
+    private static void release(NIOBroadcastMessage message) {
+        if (message != null) {
+            message.release();
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public class NIOEventLoop implements Runnable, Closeable {
+
+    // 处理 Selector 上发生事件的 SelectionKey，由事件循环线程调用
+    public interface Handler {
+        void handle(SelectionKey selectionKey) throws IOException;
+    }
+
+    // 连续多少次 select 在超时之前返回、却没有任何事件和任务时，认为遇到了 JDK 的 epoll 空轮询 bug，重建 Selector
+    // 小于等于 0 表示不重建
+    private static final int SELECTOR_AUTO_REBUILD_THRESHOLD =
+            Integer.getInteger("eniso.nio.selectorAutoRebuildThreshold", 512);
+
+    private static final long SELECT_TIMEOUT_MILLIS = 5000;
+
+    private final String name;
+
+    // 重建后会被替换，所以不是 final，其他线程通过 selector() 获取时总是拿到最新的
+    private volatile Selector selector;
+
+    // 替换后的 selectedKeys，为 null 表示替换失败，使用 JDK 的 HashSet，只在事件循环线程中访问
+    private NIOSelectedKeySet selectedKeys;
+
+    private final Handler handler;
+
+    // 其他线程提交给本事件循环执行的任务，例如：注册 Channel、发送消息
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+    private final NIOEventLoopMetrics metrics;
+
+    // 定时任务，只在事件循环线程中使用
+    private final NIOHashedWheelTimer timer = new NIOHashedWheelTimer();
+
+    private volatile Thread thread;
+
+    private volatile boolean stop;
+
+    // 连续提前返回、没有任何事件的 select 次数，只在事件循环线程中访问
+    private int prematureSelects;
+
+    public NIOEventLoop(String name, Handler handler) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        metrics = new NIOEventLoopMetrics(name);
+        selector = Selector.open();
+        selectedKeys = NIOSelectedKeySet.install(selector);
+        stop = false;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    public NIOEventLoopMetrics metrics() {
+        return metrics;
+    }
+
+    // 只能在事件循环线程中使用，其他线程需要通过 execute 提交
+    public NIOHashedWheelTimer timer() {
+        return timer;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (!inEventLoop()) {
+            // 事件循环可能阻塞在 select 上，唤醒它处理任务
+            // 如果此时还没有进入 select，那么下一次 select 会立即返回
+            selector.wakeup();
+        }
+    }
+
+    public void register(SelectableChannel channel, int ops, Object attachment) {
+        // Selector 不是线程安全的，跨线程的注册需要交给事件循环线程完成
+        // 否则 register 会与正在 select 的线程竞争同一把锁，导致注册线程长时间阻塞
+        execute(() -> {
+            try {
+                channel.register(selector, ops, attachment);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    public void stop() {
+        stop = true;
+        selector.wakeup();
+    }
+
+    private int runAllTasks() {
+        int count = 0;
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            count++;
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return count;
+    }
+
+    private void processSelectedKeys() {
+        if (selectedKeys != null) {
+            processSelectedKeysOptimized();
+            return;
+        }
+        final Set<SelectionKey> selectionKeys = selector.selectedKeys();
+        for (SelectionKey selectionKey : selectionKeys) {
+            processSelectedKey(selectionKey);
+        }
+        selectionKeys.clear();
+    }
+
+    // 按下标遍历数组，不创建 Iterator
+    private void processSelectedKeysOptimized() {
+        final NIOSelectedKeySet keySet = selectedKeys;
+        for (int i = 0; i < keySet.size; i++) {
+            final SelectionKey selectionKey = keySet.keys[i];
+            // 尽早释放引用，Channel 关闭后 key 可以被回收
+            keySet.keys[i] = null;
+            processSelectedKey(selectionKey);
+        }
+        keySet.size = 0;
+    }
+
+    private void processSelectedKey(SelectionKey selectionKey) {
+        // 同一轮中，前面的处理可能已经关闭了这个 key 对应的 Channel
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        try {
+            handler.handle(selectionKey);
+        } catch (IOException | CancelledKeyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        metrics.register();
+        try {
+            while (!stop) {
+                // 有任务等待执行时不能阻塞，否则任务会被延迟到下一次事件发生
+                // 有定时任务时，最多阻塞到时间轮的下一个 tick
+                final long timerNanos = timer.nanosUntilNextTick();
+                final long timeoutMillis = timerNanos < 0 ? SELECT_TIMEOUT_MILLIS
+                        : Math.min(SELECT_TIMEOUT_MILLIS, TimeUnit.NANOSECONDS.toMillis(timerNanos + 999_999));
+                final long selectStart = System.nanoTime();
+                final boolean blocking = taskQueue.isEmpty() && timeoutMillis > 0;
+                final int selected = blocking ? selector.select(timeoutMillis) : selector.selectNow();
+                final long processStart = System.nanoTime();
+                metrics.selected(processStart - selectStart, selected);
+                // select 的超时精度是毫秒，提前不到 1 毫秒返回不算空轮询
+                if (blocking && selected == 0 && taskQueue.isEmpty() && !stop
+                        && processStart - selectStart < TimeUnit.MILLISECONDS.toNanos(timeoutMillis - 1)) {
+                    // 提前返回，但是没有事件、没有任务，也没有被 stop 唤醒：可能是 epoll 空轮询，会导致 CPU 100%
+                    if (++prematureSelects >= SELECTOR_AUTO_REBUILD_THRESHOLD && SELECTOR_AUTO_REBUILD_THRESHOLD > 0) {
+                        System.err.println(name + " select 连续 " + prematureSelects + " 次提前返回，重建 Selector");
+                        rebuildSelector();
+                        prematureSelects = 0;
+                        continue;
+                    }
+                } else {
+                    prematureSelects = 0;
+                }
+                if (selected > 0) {
+                    processSelectedKeys();
+                }
+                final long taskStart = System.nanoTime();
+                metrics.processed(taskStart - processStart);
+                final int tasks = runAllTasks();
+                // 到期的定时任务也计入任务时间
+                timer.advance();
+                if (tasks > 0 || timerNanos >= 0) {
+                    metrics.tasksRun(tasks, System.nanoTime() - taskStart);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            stop = true;
+            closeSelector();
+            metrics.unregister();
+        }
+    }
+
+    // 打开一个新的 Selector，把所有 Channel 按原来的关注事件和 attachment 注册上去，再关闭旧的 Selector
+    // 只在事件循环线程中调用，连接不会断开
+    private void rebuildSelector() {
+        final Selector oldSelector = selector;
+        final Selector newSelector;
+        try {
+            newSelector = Selector.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (SelectionKey key : oldSelector.keys()) {
+            final SelectableChannel channel = key.channel();
+            try {
+                if (!key.isValid() || channel.keyFor(newSelector) != null) {
+                    continue;
+                }
+                final int interestOps = key.interestOps();
+                final Object attachment = key.attachment();
+                key.cancel();
+                channel.register(newSelector, interestOps, attachment);
+            } catch (IOException | CancelledKeyException e) {
+                e.printStackTrace();
+                closeQuietly(channel);
+            }
+        }
+        selector = newSelector;
+        selectedKeys = NIOSelectedKeySet.install(newSelector);
+        // 旧 Selector 上的 key 都已经取消，关闭它不会影响 Channel
+        closeQuietly(oldSelector);
+        metrics.selectorRebuilt();
+    }
+
+    private void closeSelector() {
+        if (!selector.isOpen()) {
+            return;
+        }
+        // 关闭 Selector 不会关闭注册在上面的 Channel，这里需要手动关闭
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        closeQuietly(selector);
+    }
+
+    @Override
+    public void close() {
+        stop = true;
+        if (thread == null) {
+            // 事件循环没有启动过，直接释放资源
+            closeSelector();
+        } else {
+            // 由事件循环线程在退出时释放资源，避免与正在进行的 select 竞争
+            selector.wakeup();
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NIOEventLoopGroup implements Closeable {
+
+    private final NIOEventLoop[] loops;
+
+    private final Thread[] threads;
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    public NIOEventLoopGroup(String name, NIOEventLoop.Handler handler) throws IOException {
+        // 默认每个 CPU 核心一个事件循环
+        this(Runtime.getRuntime().availableProcessors(), name, handler);
+    }
+
+    public NIOEventLoopGroup(int nThreads, String name, NIOEventLoop.Handler handler) throws IOException {
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("nThreads: " + nThreads + " (expected: > 0)");
+        }
+        loops = new NIOEventLoop[nThreads];
+        threads = new Thread[nThreads];
+        try {
+            for (int i = 0; i < nThreads; i++) {
+                loops[i] = new NIOEventLoop(name + "-" + (i + 1), handler);
+            }
+        } catch (IOException e) {
+            // 部分 Selector 已经打开，需要释放
+            close();
+            throw e;
+        }
+    }
+
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], loops[i].name());
+            threads[i].start();
+        }
+    }
+
+    // 轮询选择下一个事件循环
+    public NIOEventLoop next() {
+        return loops[Math.abs(index.getAndIncrement() % loops.length)];
+    }
+
+    public NIOEventLoop[] loops() {
+        return loops;
+    }
+
+    @Override
+    public void close() {
+        for (NIOEventLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+        // 等待所有事件循环退出，确保资源已经释放
+        for (Thread thread : threads) {
+            if (thread != null) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+}
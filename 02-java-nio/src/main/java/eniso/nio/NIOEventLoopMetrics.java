@@ -0,0 +1,276 @@
+package eniso.nio;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// 事件循环的指标，计数器都是无锁的 LongAdder，事件循环线程和其他线程都可以更新，读取时汇总
+public final class NIOEventLoopMetrics implements NIOEventLoopMetricsMXBean {
+
+    // 同一个进程中可能有多个同名的事件循环（例如两个服务器各有一个 boss），ObjectName 中加上序号区分
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private final String name;
+
+    private final LongAdder wakeups = new LongAdder();
+
+    private final LongAdder selectNanos = new LongAdder();
+
+    private final LongAdder processNanos = new LongAdder();
+
+    private final LongAdder taskNanos = new LongAdder();
+
+    private final LongAdder selectedKeys = new LongAdder();
+
+    private final LongAdder tasks = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LongAdder partialWrites = new LongAdder();
+
+    private final LongAdder pendingBytes = new LongAdder();
+
+    private final LongAdder connections = new LongAdder();
+
+    private final LongAdder selectorRebuilds = new LongAdder();
+
+    private ObjectName objectName;
+
+    NIOEventLoopMetrics(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    void selected(long nanos, int keys) {
+        wakeups.increment();
+        selectNanos.add(nanos);
+        selectedKeys.add(keys);
+    }
+
+    void processed(long nanos) {
+        processNanos.add(nanos);
+    }
+
+    void tasksRun(int count, long nanos) {
+        tasks.add(count);
+        taskNanos.add(nanos);
+    }
+
+    public void read(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void written(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void partialWrite() {
+        partialWrites.increment();
+    }
+
+    // 待发送队列增加（正数）或者减少（负数）的字节数
+    public void pending(long delta) {
+        pendingBytes.add(delta);
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+    }
+
+    public void connectionClosed() {
+        connections.decrement();
+    }
+
+    void selectorRebuilt() {
+        selectorRebuilds.increment();
+    }
+
+    @Override
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    @Override
+    public long getSelectNanos() {
+        return selectNanos.sum();
+    }
+
+    @Override
+    public long getProcessNanos() {
+        return processNanos.sum();
+    }
+
+    @Override
+    public long getTaskNanos() {
+        return taskNanos.sum();
+    }
+
+    @Override
+    public long getSelectedKeys() {
+        return selectedKeys.sum();
+    }
+
+    @Override
+    public long getTasks() {
+        return tasks.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getPartialWrites() {
+        return partialWrites.sum();
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return pendingBytes.sum();
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getSelectorRebuilds() {
+        return selectorRebuilds.sum();
+    }
+
+    @Override
+    public double getKeysPerWakeup() {
+        return snapshot().keysPerWakeup();
+    }
+
+    @Override
+    public double getBusyRatio() {
+        return snapshot().busyRatio();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(name, wakeups.sum(), selectNanos.sum(), processNanos.sum(), taskNanos.sum(),
+                selectedKeys.sum(), tasks.sum(), bytesRead.sum(), bytesWritten.sum(), partialWrites.sum(),
+                pendingBytes.sum(), connections.sum(), selectorRebuilds.sum());
+    }
+
+    // 注册到平台 MBeanServer，每次注册使用新的序号，同名的事件循环不会互相覆盖或者被忽略
+    void register() {
+        try {
+            final ObjectName objectName = new ObjectName("eniso.nio:type=EventLoop,name=" + ObjectName.quote(name)
+                    + ",id=" + SEQUENCE.incrementAndGet());
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    // 某一时刻的指标，不可变，两个快照相减可以得到一段时间内的增量
+    public static final class Snapshot {
+        public final String name;
+
+        public final long wakeups;
+
+        public final long selectNanos;
+
+        public final long processNanos;
+
+        public final long taskNanos;
+
+        public final long selectedKeys;
+
+        public final long tasks;
+
+        public final long bytesRead;
+
+        public final long bytesWritten;
+
+        public final long partialWrites;
+
+        public final long pendingBytes;
+
+        public final long connections;
+
+        public final long selectorRebuilds;
+
+        Snapshot(String name, long wakeups, long selectNanos, long processNanos, long taskNanos, long selectedKeys,
+                 long tasks, long bytesRead, long bytesWritten, long partialWrites, long pendingBytes, long connections,
+                 long selectorRebuilds) {
+            this.name = name;
+            this.wakeups = wakeups;
+            this.selectNanos = selectNanos;
+            this.processNanos = processNanos;
+            this.taskNanos = taskNanos;
+            this.selectedKeys = selectedKeys;
+            this.tasks = tasks;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.partialWrites = partialWrites;
+            this.pendingBytes = pendingBytes;
+            this.connections = connections;
+            this.selectorRebuilds = selectorRebuilds;
+        }
+
+        // 累计值相减，瞬时值（待发送字节数、连接数）取当前快照
+        public Snapshot minus(Snapshot previous) {
+            return new Snapshot(name, wakeups - previous.wakeups, selectNanos - previous.selectNanos,
+                    processNanos - previous.processNanos, taskNanos - previous.taskNanos,
+                    selectedKeys - previous.selectedKeys, tasks - previous.tasks, bytesRead - previous.bytesRead,
+                    bytesWritten - previous.bytesWritten, partialWrites - previous.partialWrites,
+                    pendingBytes, connections, selectorRebuilds - previous.selectorRebuilds);
+        }
+
+        public double keysPerWakeup() {
+            return wakeups == 0 ? 0 : (double) selectedKeys / wakeups;
+        }
+
+        public double busyRatio() {
+            final long busy = processNanos + taskNanos;
+            final long all = busy + selectNanos;
+            return all == 0 ? 0 : (double) busy / all;
+        }
+
+        @Override
+        public String toString() {
+            return name + "：连接 " + connections + "，唤醒 " + wakeups + " 次，每次 "
+                    + String.format("%.2f", keysPerWakeup()) + " 个 key，select "
+                    + TimeUnit.NANOSECONDS.toMillis(selectNanos) + "ms，处理 "
+                    + TimeUnit.NANOSECONDS.toMillis(processNanos) + "ms，任务 " + tasks + " 个 "
+                    + TimeUnit.NANOSECONDS.toMillis(taskNanos) + "ms，繁忙 "
+                    + String.format("%.1f%%", busyRatio() * 100) + "，读 " + bytesRead + " 字节，写 "
+                    + bytesWritten + " 字节，部分写入 " + partialWrites + " 次，待发送 " + pendingBytes + " 字节，重建 Selector "
+                    + selectorRebuilds + " 次";
+        }
+    }
+
+}
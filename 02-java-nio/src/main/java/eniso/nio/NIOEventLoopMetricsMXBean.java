@@ -0,0 +1,42 @@
+package eniso.nio;
+
+// 事件循环的 JMX 接口，注册为 eniso.nio:type=EventLoop,name=事件循环名称,id=序号，可以在 JConsole / VisualVM 中查看
+public interface NIOEventLoopMetricsMXBean {
+
+    // select 返回的次数
+    long getWakeups();
+
+    // 阻塞在 select 上的总时间
+    long getSelectNanos();
+
+    // 处理 SelectionKey 的总时间
+    long getProcessNanos();
+
+    // 执行任务队列的总时间
+    long getTaskNanos();
+
+    long getSelectedKeys();
+
+    long getTasks();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    // 只写入了部分数据（发送缓冲区满）的次数
+    long getPartialWrites();
+
+    // 所有连接待发送队列中的字节数
+    long getPendingBytes();
+
+    long getConnections();
+
+    // 因为 select 空轮询而重建 Selector 的次数
+    long getSelectorRebuilds();
+
+    double getKeysPerWakeup();
+
+    // 处理事件和任务的时间占比，接近 1 表示事件循环已经饱和
+    double getBusyRatio();
+
+}
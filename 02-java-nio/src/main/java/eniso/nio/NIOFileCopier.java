@@ -0,0 +1,190 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 大文件并行拷贝：把文件按 chunkSize 切分为多个区间，在 ForkJoinPool 中并行拷贝
+// 每个区间使用按位置的 transferTo（0 拷贝），或者内存映射窗口 + 按位置写入，多个线程互不影响
+public class NIOFileCopier implements Closeable {
+
+    // 进度回调，会在多个拷贝线程中并发调用
+    public interface ProgressListener {
+        void onProgress(long copied, long total);
+    }
+
+    public enum Strategy {
+        // 源文件 transferTo 到目标文件的一个独立 FileChannel，只要操作系统支持就是 0 拷贝
+        TRANSFER_TO,
+        // 源文件按区间映射到内存，再按位置写入目标文件
+        MAPPED
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final ForkJoinPool pool;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private Strategy strategy = Strategy.TRANSFER_TO;
+
+    private boolean preallocate;
+
+    private ProgressListener progressListener;
+
+    public NIOFileCopier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    // 拷贝是阻塞的 IO 操作，使用独立的线程池，不占用 ForkJoinPool.commonPool()
+    public NIOFileCopier(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    // 以下 set 方法需要在 copy 之前调用
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize + " (expected: > 0)");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public void setStrategy(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    // 拷贝前先把目标文件扩展到源文件的大小，减少并行写入时文件系统反复扩展文件
+    public void setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // 拷贝 source 到 target，target 已存在时会被覆盖，返回拷贝的字节数
+    public long copy(Path source, Path target) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long total = sourceChannel.size();
+            if (preallocate && total > 0) {
+                // JDK 没有 fallocate，写入最后一个字节来扩展文件
+                targetChannel.write(ByteBuffer.allocate(1), total - 1);
+            }
+            final Copy copy = new Copy(sourceChannel, targetChannel, target, total);
+            try {
+                pool.invoke(copy.new CopyTask(0, total));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return total;
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    // 一次拷贝共享的状态
+    private final class Copy {
+        final FileChannel source;
+
+        final FileChannel target;
+
+        final Path targetPath;
+
+        final long total;
+
+        final AtomicLong copied = new AtomicLong();
+
+        Copy(FileChannel source, FileChannel target, Path targetPath, long total) {
+            this.source = source;
+            this.target = target;
+            this.targetPath = targetPath;
+            this.total = total;
+        }
+
+        void copyRange(long position, long end) throws IOException {
+            if (strategy == Strategy.MAPPED) {
+                copyMapped(position, end);
+            } else {
+                copyTransfer(position, end);
+            }
+        }
+
+        private void copyTransfer(long position, long end) throws IOException {
+            // transferTo 写入目标通道的当前位置，所以每个区间打开一个独立的 FileChannel，互不干扰
+            // 源通道使用带 position 的 transferTo，不修改源通道的位置，可以多个线程共享
+            try (FileChannel out = FileChannel.open(targetPath, StandardOpenOption.WRITE)) {
+                out.position(position);
+                while (position < end) {
+                    final long transferred = source.transferTo(position, end - position, out);
+                    if (transferred <= 0) {
+                        // 文件到文件的 transferTo 只有在 position 超过源文件大小时才返回 0，继续循环会一直空转
+                        throw new IOException("源文件在复制过程中被截断，期望 " + total + " 字节，实际 " + source.size() + " 字节");
+                    }
+                    position += transferred;
+                    progress(transferred);
+                }
+            }
+        }
+
+        private void copyMapped(long position, long end) throws IOException {
+            final MappedByteBuffer window = source.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+            while (window.hasRemaining()) {
+                // 带 position 的 write 不修改目标通道的位置，可以多个线程共享
+                final int written = target.write(window, position);
+                position += written;
+                progress(written);
+            }
+        }
+
+        private void progress(long bytes) {
+            final long current = copied.addAndGet(bytes);
+            if (progressListener != null) {
+                progressListener.onProgress(current, total);
+            }
+        }
+
+        final class CopyTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            final long start;
+
+            final long end;
+
+            CopyTask(long start, long end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            @Override
+            protected void compute() {
+                final long length = end - start;
+                if (length <= chunkSize) {
+                    try {
+                        copyRange(start, end);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return;
+                }
+                // 按 chunkSize 对齐，从中间拆分为两个子任务
+                final long chunks = (length + chunkSize - 1) / chunkSize;
+                final long middle = start + chunks / 2 * chunkSize;
+                invokeAll(new CopyTask(start, middle), new CopyTask(middle, end));
+            }
+        }
+    }
+
+}
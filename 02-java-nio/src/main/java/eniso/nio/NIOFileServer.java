@@ -0,0 +1,289 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// 文件服务：客户端发送一帧文件名，服务端返回 8 字节的文件长度（-1 表示文件不存在），然后是文件内容
+// 一个连接可以依次请求多个文件，也可以不等响应连续发送多个请求（流水线），按请求顺序依次响应
+public class NIOFileServer implements Runnable, Closeable {
+
+    // 文件内容发送方式
+    public enum TransferMode {
+        // FileChannel#transferTo，操作系统支持时（Linux sendfile）数据不经过用户空间，0 拷贝
+        TRANSFER_TO,
+        // 把文件映射到内存后写入 Socket，省去一次读文件的拷贝
+        MAPPED,
+        // 与 NIOChannel#copy01 相同的方式：读到 buffer，再从 buffer 写出，这里使用池化的直接内存
+        BUFFERED
+    }
+
+    // 每次映射的文件窗口大小
+    private static final int MAPPED_WINDOW = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // 每次 OP_WRITE 最多写多少轮，避免一个大文件长时间占用事件循环
+    private static final int MAX_WRITE_SPIN = 16;
+
+    private final ServerSocketChannel serverSocketChannel;
+
+    private final NIOEventLoop loop;
+
+    private final Path root;
+
+    private volatile TransferMode mode;
+
+    public NIOFileServer(int port, Path root, TransferMode mode) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.mode = mode;
+        serverSocketChannel = ServerSocketChannel.open();
+        loop = new NIOEventLoop("nio-file", this::handler);
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(loop.selector(), SelectionKey.OP_ACCEPT, null);
+    }
+
+    public TransferMode mode() {
+        return mode;
+    }
+
+    private void handler(SelectionKey selectionKey) throws IOException {
+        final SelectableChannel channel = selectionKey.channel();
+        if (selectionKey.isAcceptable()) {
+            final SocketChannel socketChannel = ((ServerSocketChannel) channel).accept();
+            socketChannel.configureBlocking(false);
+            socketChannel.register(loop.selector(), SelectionKey.OP_READ, new Transfer(socketChannel));
+            return;
+        }
+        final Transfer transfer = (Transfer) selectionKey.attachment();
+        try {
+            if (selectionKey.isWritable()) {
+                if (transfer.send()) {
+                    transfer.finish();
+                    // 发送完毕，还有排队的请求时继续发送，否则继续等待下一个请求
+                    if (!transfer.next()) {
+                        selectionKey.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            } else if (selectionKey.isReadable()) {
+                // 一次读取可能包含多个请求，全部排队，按顺序发送
+                final int read = transfer.decoder.read(transfer.channel,
+                        frame -> transfer.pending.add(NIOFrameDecoder.toString(frame)));
+                if (read == -1) {
+                    transfer.close();
+                } else if (transfer.next()) {
+                    // 发送期间不再读取新的请求，只关注 OP_WRITE，从保存的 position 继续发送
+                    // 之后的请求留在 Socket 接收缓冲区中，排队的请求最多是一次读取的内容
+                    selectionKey.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            // 客户端断开等异常，释放连接和文件
+            e.printStackTrace();
+            transfer.close();
+        }
+    }
+
+    private class Transfer {
+        final SocketChannel channel;
+
+        final NIOFrameDecoder decoder = new NIOFrameDecoder(256, 4096);
+
+        // 已经解码、还没有开始发送的文件名
+        final Deque<String> pending = new ArrayDeque<>();
+
+        // 是否正在发送一个响应（包括文件不存在时只有长度的响应）
+        boolean sending;
+
+        // 8 字节的文件长度
+        final ByteBuffer header = ByteBuffer.allocate(8);
+
+        FileChannel file;
+
+        long position;
+
+        long size;
+
+        // 本次发送使用的方式，transferTo 不被支持时会降级
+        TransferMode transferMode;
+
+        MappedByteBuffer window;
+
+        ByteBuffer buffer;
+
+        Transfer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // 没有正在发送的响应时，开始发送下一个排队的请求，返回是否有响应需要发送
+        boolean next() {
+            if (!sending && !pending.isEmpty()) {
+                open(pending.poll());
+                sending = true;
+            }
+            return sending;
+        }
+
+        private void open(String name) {
+            final Path path = root.resolve(name).normalize();
+            header.clear();
+            // 只允许访问 root 目录下的文件
+            if (!path.startsWith(root) || !Files.isRegularFile(path)) {
+                header.putLong(-1).flip();
+                size = 0;
+                position = 0;
+                return;
+            }
+            try {
+                file = FileChannel.open(path, StandardOpenOption.READ);
+                size = file.size();
+            } catch (IOException e) {
+                e.printStackTrace();
+                size = -1;
+            }
+            position = 0;
+            transferMode = mode;
+            header.putLong(size < 0 ? -1 : size).flip();
+            if (size < 0) {
+                size = 0;
+            }
+        }
+
+        // 返回 true 表示已经全部发送
+        boolean send() throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < MAX_WRITE_SPIN && position < size; i++) {
+                final long written = transfer();
+                if (written <= 0) {
+                    // Socket 发送缓冲区已满，等待下一次 OP_WRITE，从 position 继续
+                    return false;
+                }
+                position += written;
+            }
+            return position >= size;
+        }
+
+        private long transfer() throws IOException {
+            switch (transferMode) {
+                case TRANSFER_TO:
+                    // 系统不支持 sendfile 时 JDK 内部已经会退回到映射或者拷贝，这里抛出的 IOException 都是真正的错误
+                    // 只有文件不是默认文件系统提供的（例如 zipfs）时，才会因为不支持而抛出 UnsupportedOperationException
+                    final long transferred;
+                    try {
+                        transferred = file.transferTo(position, size - position, channel);
+                    } catch (UnsupportedOperationException e) {
+                        degrade(TransferMode.MAPPED, e);
+                        return transfer();
+                    }
+                    // 文件被截断后 transferTo 也返回 0，与发送缓冲区已满无法区分，不检查会一直等待 OP_WRITE
+                    if (transferred == 0 && file.size() <= position) {
+                        throw new IOException("文件在发送过程中被截断");
+                    }
+                    return transferred;
+                case MAPPED:
+                    if (window == null || !window.hasRemaining()) {
+                        // 映射超出文件末尾的部分在访问时会触发 SIGBUS，导致 JVM 崩溃，每次映射之前都确认文件没有被截断
+                        // 映射之后才被截断的情况无法完全避免，窗口越小，影响的范围越小
+                        if (file.size() < size) {
+                            throw new IOException("文件在发送过程中被截断");
+                        }
+                        try {
+                            window = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW, size - position));
+                        } catch (UnsupportedOperationException e) {
+                            degrade(TransferMode.BUFFERED, e);
+                            return transfer();
+                        }
+                    }
+                    return channel.write(window);
+                case BUFFERED:
+                default:
+                    if (buffer == null) {
+                        buffer = NIOBufferPool.DEFAULT.allocate(BUFFER_SIZE);
+                        buffer.flip();
+                    }
+                    if (!buffer.hasRemaining()) {
+                        // 上一次读到的数据已经全部写出，从文件继续读取
+                        buffer.clear();
+                        if (file.read(buffer, position) <= 0) {
+                            throw new IOException("文件在发送过程中被截断");
+                        }
+                        buffer.flip();
+                    }
+                    return channel.write(buffer);
+            }
+        }
+
+        // 当前文件不支持这种发送方式，降级，后续请求也不再尝试
+        private void degrade(TransferMode to, UnsupportedOperationException e) {
+            System.err.println(transferMode + " 不可用，降级为 " + to + "：" + e);
+            mode = to;
+            transferMode = to;
+        }
+
+        void finish() {
+            sending = false;
+            if (file != null) {
+                NIOEventLoop.closeQuietly(file);
+                file = null;
+            }
+            window = null;
+            if (buffer != null) {
+                NIOBufferPool.DEFAULT.release(buffer);
+                buffer = null;
+            }
+        }
+
+        void close() {
+            finish();
+            decoder.release();
+            final SelectionKey key = channel.keyFor(loop.selector());
+            if (key != null) {
+                key.cancel();
+            }
+            NIOEventLoop.closeQuietly(channel);
+        }
+    }
+
+    public void stop() {
+        loop.stop();
+    }
+
+    @Override
+    public void run() {
+        System.out.println("NIOFileServer started, root = " + root + ", mode = " + mode);
+        loop.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        loop.close();
+        serverSocketChannel.close();
+    }
+
+    // 参数：[root 目录] [TRANSFER_TO | MAPPED | BUFFERED]
+    public static void main(String[] args) {
+        final Path root = Paths.get(args.length > 0 ? args[0] : ".");
+        final TransferMode mode = args.length > 1 ? TransferMode.valueOf(args[1].toUpperCase()) : TransferMode.TRANSFER_TO;
+        try (NIOFileServer server = new NIOFileServer(7070, root, mode)) {
+            server.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
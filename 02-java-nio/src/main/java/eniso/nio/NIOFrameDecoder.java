@@ -0,0 +1,160 @@
+package eniso.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+public class NIOFrameDecoder {
+
+    // 收到一个完整的帧，frame 就是累积 buffer，position / limit 限定在帧的内容上，只在回调期间有效
+    // 回调中可以移动 position，不能修改内容；需要保留的话要自己拷贝
+    public interface FrameHandler {
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    // 帧格式：4 字节的长度（大端） + 内容
+    public static final int HEADER_LENGTH = 4;
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private final int maxFrameLength;
+
+    private final NIOBufferPool pool;
+
+    // 每次读取的大小由连接最近的读取情况预测
+    private final NIORecvBufferAllocator.Handle recvHandle;
+
+    // 累积 buffer，处于写模式，保存还没有组成完整帧的数据
+    // 只在读取期间，或者有半包数据时才从池中借用，空闲连接不占用 buffer
+    private ByteBuffer cumulation;
+
+    // 当前不完整的帧需要的总字节数，0 表示还不知道（长度字段还没收全）
+    private int expected;
+
+    public NIOFrameDecoder() {
+        this(NIORecvBufferAllocator.DEFAULT, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    // initialCapacity 作为第一次读取的大小，之后按实际读取情况调整
+    public NIOFrameDecoder(int initialCapacity, int maxFrameLength) {
+        this(new NIORecvBufferAllocator(Math.min(NIORecvBufferAllocator.DEFAULT_MINIMUM, initialCapacity),
+                initialCapacity, Math.max(NIORecvBufferAllocator.DEFAULT_MAXIMUM, initialCapacity),
+                NIORecvBufferAllocator.DEFAULT_MAX_READS_PER_EVENT), maxFrameLength);
+    }
+
+    public NIOFrameDecoder(NIORecvBufferAllocator allocator, int maxFrameLength) {
+        this(allocator, maxFrameLength, NIOBufferPool.DEFAULT);
+    }
+
+    public NIOFrameDecoder(NIORecvBufferAllocator allocator, int maxFrameLength, NIOBufferPool pool) {
+        this.maxFrameLength = maxFrameLength;
+        this.pool = pool;
+        this.recvHandle = allocator.newHandle();
+    }
+
+    // 处理一次读事件：按预测的大小读取，读满了说明通道中可能还有数据，继续读取，直到读不满或者达到每次事件的上限
+    // 每次读取后回调所有已经完整的帧，返回读取到的总字节数，-1 表示对端已关闭
+    public int read(ReadableByteChannel channel, FrameHandler handler) throws IOException {
+        recvHandle.reset();
+        int total = 0;
+        try {
+            do {
+                final int guess = recvHandle.guess();
+                if (cumulation == null) {
+                    // 直接内存：读取时不再需要 JDK 内部临时的直接内存做中转拷贝
+                    cumulation = pool.allocate(guess);
+                }
+                ensureWritable(guess);
+                // 只读取预测的字节数，buffer 可能比预测值大（池中的规格、半包数据）
+                final int limit = cumulation.limit();
+                final int attempted = Math.min(guess, cumulation.remaining());
+                cumulation.limit(cumulation.position() + attempted);
+                recvHandle.attemptedBytesRead(attempted);
+                final int read;
+                try {
+                    read = channel.read(cumulation);
+                } finally {
+                    cumulation.limit(limit);
+                }
+                recvHandle.lastBytesRead(read);
+                if (read <= 0) {
+                    // 本次事件已经读到数据时，EOF 留到下一次读事件处理
+                    return total > 0 ? total : read;
+                }
+                total += read;
+                decode(handler);
+            } while (recvHandle.continueReading());
+            return total;
+        } finally {
+            recvHandle.readComplete();
+            if (cumulation != null && cumulation.position() == 0) {
+                // 没有残留的半包数据，归还 buffer
+                release();
+            }
+        }
+    }
+
+    // 释放正在累积的 buffer，连接关闭时调用
+    public void release() {
+        if (cumulation != null) {
+            pool.release(cumulation);
+            cumulation = null;
+        }
+        expected = 0;
+    }
+
+    private void decode(FrameHandler handler) throws IOException {
+        // 读写切换
+        cumulation.flip();
+        try {
+            expected = 0;
+            while (cumulation.remaining() >= HEADER_LENGTH) {
+                final int position = cumulation.position();
+                // 按绝对位置读取长度，不改变 position，数据不完整时不需要回退
+                final int length = cumulation.getInt(position);
+                if (length < 0 || length > maxFrameLength) {
+                    throw new IOException("帧长度异常 " + length + "，最大允许 " + maxFrameLength);
+                }
+                final int frameEnd = position + HEADER_LENGTH + length;
+                if (frameEnd > cumulation.limit()) {
+                    // 半包：等待更多数据
+                    expected = HEADER_LENGTH + length;
+                    break;
+                }
+                // 不拷贝数据，也不创建视图，直接把 position / limit 限定在帧的内容上，回调结束后移动到下一帧
+                final int limit = cumulation.limit();
+                cumulation.limit(frameEnd).position(position + HEADER_LENGTH);
+                try {
+                    handler.onFrame(cumulation);
+                } finally {
+                    cumulation.limit(limit).position(frameEnd);
+                }
+            }
+        } finally {
+            // 把剩余的不完整数据移动到 buffer 开头，继续累积
+            cumulation.compact();
+        }
+    }
+
+    private void ensureWritable(int guess) {
+        if (cumulation.remaining() >= Math.min(guess, HEADER_LENGTH + maxFrameLength - cumulation.position())
+                && expected <= cumulation.capacity()) {
+            return;
+        }
+        // 帧比当前 buffer 大，或者剩余空间不够预测的读取大小，需要扩容，每次至少翻倍，减少扩容次数
+        final int capacity = Math.min(Math.max(Math.max(expected, cumulation.position() + guess),
+                cumulation.capacity() << 1), HEADER_LENGTH + maxFrameLength);
+        final ByteBuffer newCumulation = pool.allocate(capacity);
+        cumulation.flip();
+        newCumulation.put(cumulation);
+        pool.release(cumulation);
+        cumulation = newCumulation;
+    }
+
+    // 按平台默认字符集把帧内容转换为字符串，不改变 frame 的 position
+    public static String toString(ByteBuffer frame) {
+        return Charset.defaultCharset().decode(frame.duplicate()).toString();
+    }
+
+}
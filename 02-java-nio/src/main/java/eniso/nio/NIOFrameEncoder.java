@@ -0,0 +1,32 @@
+package eniso.nio;
+
+import java.nio.ByteBuffer;
+
+public final class NIOFrameEncoder {
+
+    private NIOFrameEncoder() {
+    }
+
+    // 编码一个帧：4 字节的长度 + 内容，返回的 buffer 处于读模式
+    public static ByteBuffer encode(String msg) {
+        return encode(msg.getBytes());
+    }
+
+    public static ByteBuffer encode(byte[] payload) {
+        final ByteBuffer buffer = ByteBuffer.allocate(NIOFrameDecoder.HEADER_LENGTH + payload.length);
+        encode(payload, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    // 把一个帧追加到 out 中，多个帧可以放在同一个 buffer 中，一次 write 发送出去
+    public static void encode(byte[] payload, ByteBuffer out) {
+        out.putInt(payload.length);
+        out.put(payload);
+    }
+
+    public static int frameLength(int payloadLength) {
+        return NIOFrameDecoder.HEADER_LENGTH + payloadLength;
+    }
+
+}
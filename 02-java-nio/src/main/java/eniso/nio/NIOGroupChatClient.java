@@ -4,104 +4,161 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NIOGroupChatClient implements Runnable, Closeable {
 
+    // 一次 Gathering write 最多合并的消息数
+    private static final int MAX_BATCH = 64;
+
     private final SocketChannel clientChannel;
 
-    private final Selector selector;
+    // 连接、读、写都在这个事件循环中完成
+    private final NIOEventLoop loop;
+
+    private final NIOFrameDecoder decoder = new NIOFrameDecoder();
+
+    // 其他线程（例如 Scanner 线程）提交的待发送消息
+    private final Queue<ByteBuffer> sendQueue = new ConcurrentLinkedQueue<>();
 
-    private boolean stop;
+    // 是否已经向事件循环提交了 flush 任务，连续发送多条消息时只提交一次，只唤醒一次 Selector
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // 以下只在事件循环线程中访问：已经从 sendQueue 取出、还没有写完的消息
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
 
     public NIOGroupChatClient(String ip, int port) throws IOException {
+        loop = new NIOEventLoop("client", this::handler);
         clientChannel = SocketChannel.open();
         clientChannel.configureBlocking(false);
-        clientChannel.connect(new InetSocketAddress(ip, port));
-        while (!clientChannel.finishConnect()) {
-            System.out.println("正在连接服务器 ...");
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        // 非阻塞连接，通常返回 false，连接建立后 Selector 上触发 OP_CONNECT，不需要 sleep 轮询
+        if (clientChannel.connect(new InetSocketAddress(ip, port))) {
+            clientChannel.register(loop.selector(), SelectionKey.OP_READ, null);
+        } else {
+            clientChannel.register(loop.selector(), SelectionKey.OP_CONNECT, null);
         }
-
-        selector = Selector.open();
-        clientChannel.register(selector, SelectionKey.OP_READ, null);
-        stop = false;
     }
 
-    public void readMessage() throws IOException {
-        if (selector.select(1000) > 0) {
-            // 得到发生关注事件的 SelectionKey 集合
-            final Set<SelectionKey> selectionKeys = selector.selectedKeys();
-            // 遍历处理
-            for (SelectionKey selectionKey : selectionKeys) {
-                if (selectionKey.isReadable()) {
-                    final SelectableChannel channel = selectionKey.channel();
-                    if (channel instanceof SocketChannel) {
-                        final Object attachment = selectionKey.attachment();
-                        ByteBuffer buffer;
-                        if (attachment instanceof ByteBuffer) {
-                            buffer = (ByteBuffer) attachment;
-                        } else {
-                            // 首次进来，创建一个 buffer
-                            buffer = ByteBuffer.allocate(4096);
-                            selectionKey.attach(buffer);
-                        }
-
-                        buffer.clear();
-                        final int read = ((SocketChannel) channel).read(buffer);
-                        if (read != -1) {
-                            System.out.println(new String(buffer.array(), 0, read));
-                        } else {
-                            // 当客户端断开后，这里也需要断开。解决一些 JDK 在客户端断开后的问题
-                            selectionKey.cancel();
-                            channel.close();
-                        }
+    private void handler(SelectionKey selectionKey) throws IOException {
+        try {
+            if (selectionKey.isConnectable()) {
+                clientChannel.finishConnect();
+                System.out.println("连接服务器成功 " + clientChannel.getRemoteAddress());
+                selectionKey.interestOps(SelectionKey.OP_READ);
+                // 连接建立之前提交的消息
+                flush();
+            }
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                // 发送缓冲区有空间了，继续发送积压的数据
+                flush();
+            }
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                final int read = decoder.read(clientChannel, frame -> {
+                    if (!frame.hasRemaining()) {
+                        // 服务器的心跳，回复一个空帧，在本次读取结束后一起发送
+                        sendQueue.offer(NIOFrameEncoder.encode(new byte[0]));
+                        return;
                     }
+                    System.out.println(NIOFrameDecoder.toString(frame));
+                });
+                if (read == -1) {
+                    throw new IOException("服务器断开连接");
+                }
+                if (!sendQueue.isEmpty()) {
+                    flush();
                 }
             }
-            // 清空，很关键
-            selectionKeys.clear();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            decoder.release();
+            selectionKey.cancel();
+            clientChannel.close();
+            stop();
         }
     }
 
-    public void sendMessage(String msg) throws IOException {
-        if (clientChannel.isConnected()) {
-            clientChannel.write(ByteBuffer.wrap(msg.getBytes()));
-        } else {
+    // 可以在任意线程调用，消息进入发送队列，由事件循环批量发送
+    public void sendMessage(String msg) {
+        if (!clientChannel.isOpen()) {
             stop();
             try {
                 System.in.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            return;
+        }
+        // 编码为 长度 + 内容 的帧，服务端按帧拆分消息，不再依赖每次 read 的边界
+        sendQueue.offer(NIOFrameEncoder.encode(msg));
+        if (flushScheduled.compareAndSet(false, true)) {
+            // execute 会 wakeup 阻塞在 select 上的事件循环
+            loop.execute(() -> {
+                // 先清除标记再发送，发送期间新加入的消息会再提交一次 flush，不会遗漏
+                flushScheduled.set(false);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    NIOEventLoop.closeQuietly(clientChannel);
+                    stop();
+                }
+            });
         }
     }
 
-    @Override
-    public void run() {
-        System.out.println("客户端启动完成 ...");
-        while (!stop) {
-            // 服务器断开连接
-            if (!clientChannel.isConnected()) {
-                stop();
-                break;
+    // 只在事件循环线程中调用
+    private void flush() throws IOException {
+        if (!clientChannel.isConnected()) {
+            // 还在连接中，连接建立后再发送
+            return;
+        }
+        ByteBuffer buffer;
+        while ((buffer = sendQueue.poll()) != null) {
+            outbound.addLast(buffer);
+        }
+        while (!outbound.isEmpty()) {
+            // 把多条消息合并为一次 Gathering write，一次系统调用发送多条消息
+            int count = 0;
+            long expected = 0;
+            for (ByteBuffer pending : outbound) {
+                batch[count++] = pending;
+                expected += pending.remaining();
+                if (count == MAX_BATCH) {
+                    break;
+                }
             }
-            try {
-                readMessage();
-            } catch (IOException e) {
-                e.printStackTrace();
+            final long written = clientChannel.write(batch, 0, count);
+            for (int i = 0; i < count; i++) {
+                batch[i] = null;
             }
+            while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+                outbound.pollFirst();
+            }
+            if (written < expected) {
+                // 只写入了部分数据，发送缓冲区已满，等待 OP_WRITE
+                break;
+            }
+        }
+        final SelectionKey key = clientChannel.keyFor(loop.selector());
+        if (key != null && key.isValid()) {
+            key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
-        // 关闭输入
+    }
+
+    @Override
+    public void run() {
+        System.out.println("客户端启动完成 ...");
+        loop.run();
+        // 服务器断开连接后，关闭输入，结束 Scanner 的等待
         try {
             System.in.close();
         } catch (IOException e) {
@@ -110,25 +167,20 @@ public class NIOGroupChatClient implements Runnable, Closeable {
     }
 
     public void stop() {
-        stop = true;
+        loop.stop();
     }
 
     @Override
     public void close() throws IOException {
-        stop = true;
-        if (selector != null) {
-            selector.close();
-        }
-        if (clientChannel != null) {
-            clientChannel.close();
-        }
+        loop.close();
+        clientChannel.close();
         System.out.println("客户端退出完成 ...");
     }
 
     public static void main(String[] args) {
         // 创建客户端，如果发生异常，那么会自动调用 close 方法释放资源
         try (NIOGroupChatClient client = new NIOGroupChatClient("127.0.0.1", 7070)) {
-            // 启动一个线程读取来自服务器的数据
+            // 启动一个线程运行事件循环，负责连接、读取来自服务器的数据、发送消息
             new Thread(client).start();
             // 扫描用户键盘输入
             Scanner scanner = new Scanner(System.in);
@@ -5,31 +5,156 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class NIOGroupChatServer implements Runnable, Closeable {
 
-    private final ServerSocketChannel serverChannel;
+    // 默认的 backlog：内核中已完成三次握手、等待 accept 的连接队列长度，实际还受 net.core.somaxconn 限制
+    public static final int DEFAULT_BACKLOG = 1024;
 
-    private final Selector selector;
+    // 房间名由用户输入，每个房间都有索引项和消息日志，限制房间名的长度和同时存在的房间数
+    public static final int MAX_ROOM_NAME_LENGTH = 32;
 
-    private boolean stop;
+    public static final int MAX_ROOMS = 256;
+
+    // 每个 acceptor 一个 ServerSocketChannel 和一个 boss 事件循环
+    private final ServerSocketChannel[] serverChannels;
+
+    // boss 事件循环，只处理 OP_ACCEPT，接收连接后交给 worker
+    private final NIOEventLoop[] bossLoops;
+
+    // 除了第一个 boss 之外，其他 boss 事件循环所在的线程
+    private final Thread[] bossThreads;
+
+    // worker 事件循环组，每个 worker 有自己的 Selector，负责已建立连接的读写
+    private final NIOEventLoopGroup workerGroup;
+
+    // 每个连接待发送数据的低水位、高水位，以及超过高水位后的处理策略
+    private int lowWaterMark = NIOConnection.DEFAULT_LOW_WATER_MARK;
+
+    private int highWaterMark = NIOConnection.DEFAULT_HIGH_WATER_MARK;
+
+    private NIOConnection.OverflowPolicy overflowPolicy = NIOConnection.OverflowPolicy.DROP;
+
+    // 按房间记录的广播消息日志，为 null 时不记录，进入房间（包括上线进入大厅）时回放该房间最近 replayCount 条消息
+    private NIORoomMessageLog messageLog;
+
+    private int replayCount;
+
+    // 空闲检测，为 null 时不检测。一段时间没有收到数据时发送心跳（空帧），更长时间没有收到数据时认为客户端已经失联，断开连接
+    private NIOIdleStateMonitor idleMonitor;
+
+    private long readerIdleNanos;
+
+    // 是否向房间的其他成员广播上线、下线通知，默认广播
+    private boolean presenceBroadcast = true;
+
+    // 聊天室索引，广播只发给房间的成员，新用户默认加入大厅
+    private final NIOChatRoomIndex roomIndex;
+
+    // 聊天消息输出到标准输出，由后台线程异步写，事件循环只拷贝字节
+    private final NIOAsyncLogger logger;
 
     public NIOGroupChatServer(int port) throws IOException {
-        serverChannel = ServerSocketChannel.open();
-        selector = Selector.open();
-        // 设置为非阻塞
-        serverChannel.configureBlocking(false);
-        // 绑定端口
-        serverChannel.bind(new InetSocketAddress(port));
-        // 注册到 Selector 上，监听 OP_ACCEPT 连接请求事件
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT, null);
-        stop = false;
+        // 默认 worker 数量为 CPU 核心数
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    public NIOGroupChatServer(int port, int workerThreads) throws IOException {
+        this(port, workerThreads, 1, DEFAULT_BACKLOG);
+    }
+
+    // acceptors 大于 1 时，通过 SO_REUSEPORT 在同一个端口上绑定多个 ServerSocketChannel，每个由自己的 boss 事件循环 accept
+    // 内核按连接的四元组哈希把新连接分散到各个监听队列中，大量客户端同时重连时，accept 不再只由一个线程完成
+    public NIOGroupChatServer(int port, int workerThreads, int acceptors, int backlog) throws IOException {
+        if (acceptors <= 0) {
+            throw new IllegalArgumentException("acceptors: " + acceptors + " (expected: > 0)");
+        }
+        serverChannels = new ServerSocketChannel[acceptors];
+        bossLoops = new NIOEventLoop[acceptors];
+        bossThreads = new Thread[acceptors];
+        workerGroup = new NIOEventLoopGroup(workerThreads, "worker", this::workerHandler);
+        roomIndex = new NIOChatRoomIndex(workerGroup.loops());
+        logger = new NIOAsyncLogger(System.out);
+        try {
+            for (int i = 0; i < acceptors; i++) {
+                bossLoops[i] = new NIOEventLoop(acceptors == 1 ? "boss" : "boss-" + (i + 1), this::handler);
+                serverChannels[i] = ServerSocketChannel.open();
+                // 设置为非阻塞
+                serverChannels[i].configureBlocking(false);
+                if (acceptors > 1) {
+                    // 所有通道都要在 bind 之前设置，否则绑定同一个端口会失败
+                    NIOSocketOptions.setReusePort(serverChannels[i]);
+                }
+                // 绑定端口
+                serverChannels[i].bind(new InetSocketAddress(port), backlog);
+                // 注册到 boss 的 Selector 上，监听 OP_ACCEPT 连接请求事件
+                serverChannels[i].register(bossLoops[i].selector(), SelectionKey.OP_ACCEPT, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            // 部分通道已经绑定，需要释放
+            release();
+            throw e;
+        }
+    }
+
+    // 需要在 run 之前调用
+    public void setWriteBufferWaterMark(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("lowWaterMark: " + lowWaterMark + ", highWaterMark: " + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    // 需要在 run 之前调用
+    public void setOverflowPolicy(NIOConnection.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    // 需要在 run 之前调用，关闭后上线、下线只输出到控制台。压测连接建立速度时，广播的开销会远大于 accept 本身
+    public void setPresenceBroadcast(boolean presenceBroadcast) {
+        this.presenceBroadcast = presenceBroadcast;
+    }
+
+    // 需要在 run 之前调用，日志由调用方关闭
+    public void setMessageLog(NIORoomMessageLog messageLog, int replayCount) {
+        this.messageLog = messageLog;
+        this.replayCount = replayCount;
+    }
+
+    // 需要在 run 之前调用，heartbeatSeconds 秒没有收到数据时发送心跳，readerIdleSeconds 秒没有收到数据时断开
+    // 心跳按读空闲而不是写空闲发送：只收不发的客户端在活跃的房间中一直有数据写出，按写空闲永远收不到心跳，也就不会回复
+    public void setIdleTimeouts(long heartbeatSeconds, long readerIdleSeconds) {
+        if (heartbeatSeconds <= 0 || readerIdleSeconds <= heartbeatSeconds) {
+            throw new IllegalArgumentException("heartbeatSeconds: " + heartbeatSeconds
+                    + ", readerIdleSeconds: " + readerIdleSeconds + " (expected: 0 < heartbeatSeconds < readerIdleSeconds)");
+        }
+        readerIdleNanos = TimeUnit.SECONDS.toNanos(readerIdleSeconds);
+        // 读空闲每 heartbeatSeconds 秒触发一次，由 onIdle 决定发送心跳还是断开
+        idleMonitor = new NIOIdleStateMonitor(heartbeatSeconds, 0, 0, TimeUnit.SECONDS, this::onIdle);
+    }
+
+    private void onIdle(NIOConnection connection, NIOIdleStateMonitor.IdleState state) {
+        if (state != NIOIdleStateMonitor.IdleState.READER_IDLE) {
+            return;
+        }
+        if (System.nanoTime() - connection.lastReadNanos() >= readerIdleNanos) {
+            offline(connection, "用户 '" + connection.label() + "' 心跳超时下线");
+        } else {
+            // 长度为 0 的帧作为心跳，客户端收到后回复一个空帧
+            connection.write(NIOFrameEncoder.encode(new byte[0]));
+        }
     }
 
     public void stop() {
-        stop = true;
+        for (NIOEventLoop bossLoop : bossLoops) {
+            bossLoop.stop();
+        }
     }
 
     private void handler(SelectionKey selectionKey) throws IOException {
@@ -42,101 +167,276 @@ public class NIOGroupChatServer implements Runnable, Closeable {
             if (channel instanceof ServerSocketChannel) {
                 final SocketChannel socketChannel = ((ServerSocketChannel) channel).accept();
                 socketChannel.configureBlocking(false);
-                ByteBuffer buffer = ByteBuffer.allocate(4096);
-                // attachment 可以传递任何数据，这里只是简单的传递了 buffer
-                socketChannel.register(selector, SelectionKey.OP_READ, buffer);
-                String msg = "新用户 '" + socketChannel.getRemoteAddress().toString().substring(1) + "' 上线";
+                // 轮询交给一个 worker，之后该连接的所有读写都在这个 worker 上完成
+                final NIOEventLoop worker = workerGroup.next();
+                // attachment 可以传递任何数据，这里传递的是连接对象，包含读 buffer 和待发送队列
+                final NIOConnection connection = new NIOConnection(socketChannel, worker,
+                        lowWaterMark, highWaterMark, overflowPolicy);
+                // 每个连接只创建一次，之后每次读取都复用
+                connection.setFrameHandler(frame -> onFrame(connection, frame));
+                // 无论连接因为什么原因关闭，都要离开所有房间
+                connection.setCloseListener(this::onClose);
+                // 在 boss 中直接加入大厅，之后的广播一定能看到这个连接；注册之前收到的广播没写完时，注册时会关注 OP_WRITE
+                roomIndex.join(NIOChatRoomIndex.LOBBY, connection);
+                connection.register(SelectionKey.OP_READ);
+                if (idleMonitor != null) {
+                    // 时间轮只能在 worker 线程中使用，排在注册任务之后执行
+                    worker.execute(() -> idleMonitor.watch(connection));
+                }
+                // 在上线消息写入日志之前记下大厅日志的位置，只回放这之前的消息；映射、读取日志都在 worker 中进行，不占用 boss
+                final long end = nextOffset(NIOChatRoomIndex.LOBBY);
+                if (end > 0) {
+                    // 排在注册任务之后执行
+                    worker.execute(() -> replay(connection, history(NIOChatRoomIndex.LOBBY, end)));
+                }
+                String msg = "新用户 '" + connection.label() + "' 上线";
                 System.err.println(msg);
-                dispatchToOthers(socketChannel, msg);
+                if (presenceBroadcast) {
+                    // 排除新用户自己
+                    publish(NIOChatRoomIndex.LOBBY, connection, msg);
+                }
             }
-        } else if (selectionKey.isReadable()) {
-            // 暂时只关注 SocketChannel
-            if (channel instanceof SocketChannel) {
-                final Object attachment = selectionKey.attachment();
-                ByteBuffer buffer;
-                if (attachment instanceof ByteBuffer) {
-                    // 当交互比较频繁时，使用 attachment，相比每次都创建一个 buffer 更合理
-                    buffer = (ByteBuffer) attachment;
-                } else {
-                    buffer = ByteBuffer.allocate(4096);
-                    // 其实也不一定一开始就传递 buffer 到 attachment，也可以这么传递
-                    selectionKey.attach(buffer);
+        }
+    }
+
+    private void workerHandler(SelectionKey selectionKey) throws IOException {
+        final Object attachment = selectionKey.attachment();
+        // 暂时只关注 SocketChannel，所有 SocketChannel 注册时都关联了 NIOConnection
+        if (!(attachment instanceof NIOConnection)) {
+            return;
+        }
+        final NIOConnection connection = (NIOConnection) attachment;
+        if (selectionKey.isWritable()) {
+            // 发送缓冲区有空间了，继续发送积压的数据
+            connection.flush();
+        }
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            try {
+                // 一次读取可能包含多条消息，也可能只有半条消息，由解码器负责拆分和累积，每个完整的帧回调 onFrame
+                final int read = connection.read();
+                if (read == -1) {
+                    throw new IOException("读取长度异常 -1");
                 }
+            } catch (IOException e) {
+                // 当客户端断开后，这里也需要断开。解决一些 JDK 在客户端断开后的问题
+                offline(connection, "用户 '" + connection.label() + "' 下线");
+            }
+        }
+    }
 
-                String username = ((SocketChannel) channel).getRemoteAddress().toString().substring(1);
-                try {
-                    buffer.clear();
-                    final int read = ((SocketChannel) channel).read(buffer);
-                    if (read != -1) {
-                        String msg = "用户 '" + username + "' 说 : " + new String(buffer.array(), 0, read);
-                        System.out.println(msg);
-                        dispatchToOthers((SocketChannel) channel, msg);
-                    } else {
-                        throw new IOException("读取长度异常 -1");
-                    }
-                } catch (IOException e) {
-                    // 当客户端断开后，这里也需要断开。解决一些 JDK 在客户端断开后的问题
-                    selectionKey.cancel();
-                    channel.close();
-                    String msg = "用户 '" + username + "' 下线";
-                    System.err.println(msg);
-                    dispatchToOthers((SocketChannel) channel, msg);
+    // 聊天消息不转换为 String，原始字节加上缓存的前缀直接编码为广播消息，稳定状态下不创建任何对象
+    private void onFrame(NIOConnection connection, ByteBuffer frame) {
+        if (!frame.hasRemaining()) {
+            // 心跳回复，只用于刷新最后一次读的时间，不广播
+            return;
+        }
+        if (frame.get(frame.position()) == '/') {
+            command(connection, connection.label(), NIOFrameDecoder.toString(frame));
+            return;
+        }
+        for (String room : connection.roomArray()) {
+            final byte[] prefix = prefix(connection, room);
+            logger.log(prefix, frame);
+            publish(room, connection, NIOBroadcastMessage.encode(prefix, frame));
+        }
+    }
+
+    // 消息前缀：[房间] 用户 'xxx' 说 : ，按房间缓存在连接上，切换房间后才重新编码
+    private static byte[] prefix(NIOConnection connection, String room) {
+        byte[] prefix = connection.prefix(room);
+        if (prefix == null) {
+            prefix = ("[" + room + "] 用户 '" + connection.label() + "' 说 : ").getBytes();
+            connection.prefix(room, prefix);
+        }
+        return prefix;
+    }
+
+    // 在连接所属的 worker 中执行：/join 房间名 切换房间，/leave 回到大厅，/rooms 列出所有房间
+    private void command(NIOConnection connection, String username, String text) {
+        final String[] parts = text.trim().split("\\s+", 2);
+        switch (parts[0]) {
+            case "/join":
+                if (parts.length < 2) {
+                    connection.write(NIOFrameEncoder.encode("用法: /join 房间名"));
+                } else if (parts[1].length() > MAX_ROOM_NAME_LENGTH) {
+                    connection.write(NIOFrameEncoder.encode("房间名不能超过 " + MAX_ROOM_NAME_LENGTH + " 个字符"));
+                } else if (roomIndex.size(parts[1]) == 0 && roomIndex.rooms().size() >= MAX_ROOMS) {
+                    // 只限制创建新房间，已有的房间总是可以加入；多个 worker 同时创建时可能略微超过上限
+                    connection.write(NIOFrameEncoder.encode("房间数已经达到上限 " + MAX_ROOMS));
+                } else {
+                    switchRoom(connection, username, parts[1]);
+                }
+                break;
+            case "/leave":
+                switchRoom(connection, username, NIOChatRoomIndex.LOBBY);
+                break;
+            case "/rooms":
+                final StringBuilder builder = new StringBuilder("房间:");
+                for (String room : roomIndex.rooms()) {
+                    builder.append(' ').append(room).append('(').append(roomIndex.size(room)).append(')');
                 }
+                connection.write(NIOFrameEncoder.encode(builder.toString()));
+                break;
+            default:
+                connection.write(NIOFrameEncoder.encode("未知命令: " + parts[0]));
+        }
+    }
+
+    private void switchRoom(NIOConnection connection, String username, String room) {
+        if (connection.rooms().contains(room)) {
+            return;
+        }
+        for (String previous : connection.rooms()) {
+            roomIndex.leave(previous, connection);
+            publish(previous, null, "[" + previous + "] 用户 '" + username + "' 离开");
+        }
+        // 当前在 worker 中，回放直接写出，一定排在加入之后收到的其他 worker 投递的消息之前
+        replay(connection, history(room, Long.MAX_VALUE));
+        roomIndex.join(room, connection);
+        publish(room, connection, "[" + room + "] 用户 '" + username + "' 加入");
+        connection.write(NIOFrameEncoder.encode("已进入房间 " + room));
+    }
+
+    // 在连接所属的 worker 中执行，先离开所有房间再关闭，通知这些房间的其他成员
+    private void offline(NIOConnection connection, String msg) {
+        final String[] rooms = connection.roomArray();
+        roomIndex.leaveAll(connection);
+        connection.close();
+        System.err.println(msg);
+        if (presenceBroadcast) {
+            for (String room : rooms) {
+                publish(room, null, msg);
             }
         }
     }
 
-    private void dispatchToOthers(SocketChannel excluded, String msg) {
-        final Set<SelectionKey> keys = selector.keys();
-        for (SelectionKey key : keys) {
-            final SelectableChannel channel = key.channel();
-            if (channel != excluded && channel instanceof SocketChannel) {
+    // 写失败、积压断开、注册失败等由连接自己关闭的情况，连接还在房间中，在这里离开并通知；offline 已经离开过，这里什么都不做
+    private void onClose(NIOConnection connection) {
+        if (connection.roomArray().length > 0) {
+            offline(connection, "用户 '" + connection.label() + "' 断开连接");
+        }
+    }
+
+    // 房间日志的下一个 offset，没有配置日志或者读取失败时返回 0
+    private long nextOffset(String room) {
+        if (messageLog == null || replayCount <= 0) {
+            return 0;
+        }
+        try {
+            return messageLog.nextOffset(room);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    // 房间 end 之前的最近 replayCount 条消息，没有配置日志或者读取失败时返回空列表
+    private List<ByteBuffer> history(String room, long end) {
+        if (messageLog == null || replayCount <= 0) {
+            return Collections.emptyList();
+        }
+        try {
+            return messageLog.replay(room, replayCount, end);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+
+    private static void replay(NIOConnection connection, List<ByteBuffer> history) {
+        for (ByteBuffer buffer : history) {
+            connection.write(buffer);
+        }
+    }
+
+    private void publish(String room, NIOConnection excluded, String msg) {
+        // 消息只编码一次，房间的所有接收者共享同一个 buffer
+        publish(room, excluded, NIOBroadcastMessage.encode(msg));
+    }
+
+    // 发布后释放创建者持有的引用
+    private void publish(String room, NIOConnection excluded, NIOBroadcastMessage message) {
+        try {
+            if (messageLog != null) {
                 try {
-                    ((SocketChannel) channel).write(ByteBuffer.wrap(msg.getBytes()));
+                    // 只是拷贝到映射内存中，由日志的后台线程定时落盘，不阻塞事件循环
+                    messageLog.append(room, message.frame());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            // 只有房间成员所在的 worker 会收到投递任务，每个 worker 只写自己的连接
+            roomIndex.publish(room, excluded, message);
+        } finally {
+            message.release();
+        }
+    }
+
+    // 输出 boss 和所有 worker 事件循环的指标，也可以通过 JMX 查看
+    public void printMetrics() {
+        for (NIOEventLoop bossLoop : bossLoops) {
+            System.out.println(bossLoop.metrics().snapshot());
+        }
+        for (NIOEventLoop loop : workerGroup.loops()) {
+            System.out.println(loop.metrics().snapshot());
         }
     }
 
     @Override
     public void run() {
-        try {
-            System.out.println("服务器启动完成 ...");
-            while (!stop) {
-                if (selector.select(5000) > 0) {
-                    final Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                    for (SelectionKey selectionKey : selectionKeys) {
-                        try {
-                            handler(selectionKey);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    selectionKeys.clear();
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            stop = true;
+        System.out.println("服务器启动完成 ...");
+        workerGroup.start();
+        for (int i = 1; i < bossLoops.length; i++) {
+            bossThreads[i] = new Thread(bossLoops[i], bossLoops[i].name());
+            bossThreads[i].start();
         }
+        // 第一个 boss 事件循环运行在当前线程
+        bossLoops[0].run();
     }
 
     @Override
     public void close() throws IOException {
-        stop = true;
-        if (selector != null) {
-            selector.close();
+        release();
+        System.out.println(NIOBroadcastMessage.statistics());
+        System.out.println("服务器退出完成 ...");
+    }
+
+    private void release() throws IOException {
+        for (NIOEventLoop bossLoop : bossLoops) {
+            if (bossLoop != null) {
+                bossLoop.close();
+            }
         }
-        if (serverChannel != null) {
-            serverChannel.close();
+        for (Thread thread : bossThreads) {
+            if (thread != null) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
         }
-        System.out.println("服务器退出完成 ...");
+        workerGroup.close();
+        logger.close();
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        }
+    }
+
+    // 参数：[acceptors]，大于 1 时通过 SO_REUSEPORT 绑定多个监听通道
+    private static NIOGroupChatServer newServer(String[] args) throws IOException {
+        final int acceptors = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        return new NIOGroupChatServer(7070, Runtime.getRuntime().availableProcessors(), acceptors, DEFAULT_BACKLOG);
     }
 
     public static void main(String[] args) {
-        try (NIOGroupChatServer server = new NIOGroupChatServer(7070)) {
+        try (NIORoomMessageLog messageLog = new NIORoomMessageLog(Paths.get("chat-log"));
+             NIOGroupChatServer server = newServer(args)) {
+            server.setMessageLog(messageLog, 20);
+            server.setIdleTimeouts(30, 90);
             new Thread(server).start();
             Scanner scanner = new Scanner(System.in);
             while (scanner.hasNextLine()) {
@@ -144,6 +444,9 @@ public class NIOGroupChatServer implements Runnable, Closeable {
                 if (msg.equals("quit")) {
                     server.stop();
                     break;
+                } else if (msg.equals("stats")) {
+                    System.out.println(NIOBroadcastMessage.statistics());
+                    server.printMetrics();
                 }
             }
         } catch (IOException e) {
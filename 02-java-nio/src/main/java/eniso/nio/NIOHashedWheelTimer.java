@@ -0,0 +1,185 @@
+package eniso.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 时间轮定时器，运行在事件循环线程中，只能在事件循环线程中调用，不需要任何同步
+// 时间被划分为固定长度的 tick，wheelSize 个桶首尾相连，定时任务按到期的 tick 放入对应的桶（双向链表）
+// 添加和取消都是 O(1)，每个 tick 只处理一个桶，精度为一个 tick
+public final class NIOHashedWheelTimer {
+
+    public static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final long startNanos;
+
+    // 已经处理到的 tick
+    private long tick;
+
+    private int pending;
+
+    // 当前 tick 到期的任务，复用同一个列表
+    private final List<Timeout> expired = new ArrayList<>();
+
+    public NIOHashedWheelTimer() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE);
+    }
+
+    public NIOHashedWheelTimer(long tickNanos, int wheelSize) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickNanos: " + tickNanos + " (expected: > 0)");
+        }
+        if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize: " + wheelSize + " (expected: power of 2)");
+        }
+        this.tickNanos = tickNanos;
+        wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = wheelSize - 1;
+        startNanos = System.nanoTime();
+    }
+
+    // 到期后在事件循环线程中执行 task，至少延迟一个 tick
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        final long now = System.nanoTime() - startNanos;
+        if (pending == 0) {
+            // 空闲期间没有推进 tick，先对齐到当前时间，避免 advance 时逐个补齐空闲期间的 tick
+            tick = Math.max(tick, now / tickNanos);
+        }
+        final long deadline = now + Math.max(0, unit.toNanos(delay));
+        // 向上取整，保证不会提前执行
+        final long deadlineTick = Math.max(tick + 1, (deadline + tickNanos - 1) / tickNanos);
+        final Timeout timeout = new Timeout(this, task);
+        // 超过一圈的任务，每经过一圈 rounds 减 1，减到 0 时才到期
+        timeout.rounds = (deadlineTick - tick - 1) / wheel.length;
+        wheel[(int) (deadlineTick & mask)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    public int pending() {
+        return pending;
+    }
+
+    // 距离下一个 tick 的纳秒数，没有定时任务时返回 -1，事件循环据此缩短 select 的超时时间
+    public long nanosUntilNextTick() {
+        if (pending == 0) {
+            return -1;
+        }
+        return Math.max(0, (tick + 1) * tickNanos - (System.nanoTime() - startNanos));
+    }
+
+    // 处理所有已经到期的 tick，由事件循环在每次 select 之后调用
+    public void advance() {
+        final long now = System.nanoTime() - startNanos;
+        while (pending > 0 && (tick + 1) * tickNanos <= now) {
+            tick++;
+            expire(wheel[(int) (tick & mask)]);
+        }
+        if (pending == 0) {
+            // 没有任务时直接跳到当前 tick，之后添加的任务从当前时间开始计算
+            tick = Math.max(tick, now / tickNanos);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        // 先把到期的任务全部摘下，再逐个执行，任务中添加、取消其他定时任务不会影响桶的遍历
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            if (timeout.rounds <= 0) {
+                bucket.remove(timeout);
+                pending--;
+                expired.add(timeout);
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            try {
+                expired.get(i).task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        expired.clear();
+    }
+
+    public static final class Timeout {
+        private final NIOHashedWheelTimer timer;
+
+        private final Runnable task;
+
+        private long rounds;
+
+        private Bucket bucket;
+
+        private Timeout prev;
+
+        private Timeout next;
+
+        private Timeout(NIOHashedWheelTimer timer, Runnable task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        // 从桶中摘除，O(1)，已经执行或者已经取消时返回 false
+        public boolean cancel() {
+            if (bucket == null) {
+                return false;
+            }
+            bucket.remove(this);
+            timer.pending--;
+            return true;
+        }
+
+        public boolean isPending() {
+            return bucket != null;
+        }
+    }
+
+    private static final class Bucket {
+        Timeout head;
+
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+}
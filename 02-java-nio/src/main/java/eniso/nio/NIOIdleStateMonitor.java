@@ -0,0 +1,135 @@
+package eniso.nio;
+
+import java.util.concurrent.TimeUnit;
+
+// 空闲连接检测：读空闲、写空闲、读写都空闲，使用事件循环的时间轮，不需要定时扫描所有连接
+// 每个连接每种检测只有一个定时任务，到期时根据最后一次读写的时间决定是触发事件，还是按剩余时间重新调度
+public final class NIOIdleStateMonitor {
+
+    public enum IdleState {
+        // 一段时间内没有读到数据，通常表示对端已经失联，需要断开
+        READER_IDLE,
+        // 一段时间内没有写出数据，通常需要发送心跳
+        WRITER_IDLE,
+        ALL_IDLE
+    }
+
+    // 在连接所属的事件循环线程中回调
+    public interface IdleListener {
+        void onIdle(NIOConnection connection, IdleState state);
+    }
+
+    private final long readerIdleNanos;
+
+    private final long writerIdleNanos;
+
+    private final long allIdleNanos;
+
+    private final IdleListener listener;
+
+    // 时间小于等于 0 表示不检测
+    public NIOIdleStateMonitor(long readerIdleTime, long writerIdleTime, long allIdleTime, TimeUnit unit,
+                               IdleListener listener) {
+        this.readerIdleNanos = Math.max(0, unit.toNanos(readerIdleTime));
+        this.writerIdleNanos = Math.max(0, unit.toNanos(writerIdleTime));
+        this.allIdleNanos = Math.max(0, unit.toNanos(allIdleTime));
+        this.listener = listener;
+    }
+
+    // 开始检测，只能在连接所属的事件循环线程中调用，连接关闭时自动取消
+    public void watch(NIOConnection connection) {
+        final Watcher watcher = new Watcher(connection);
+        connection.setIdleWatcher(watcher);
+        watcher.start();
+    }
+
+    final class Watcher {
+        private final NIOConnection connection;
+
+        private final NIOHashedWheelTimer timer;
+
+        private NIOHashedWheelTimer.Timeout readerTimeout;
+
+        private NIOHashedWheelTimer.Timeout writerTimeout;
+
+        private NIOHashedWheelTimer.Timeout allTimeout;
+
+        Watcher(NIOConnection connection) {
+            this.connection = connection;
+            this.timer = connection.loop().timer();
+        }
+
+        void start() {
+            if (connection.isClosed()) {
+                // 注册失败、写出失败等情况下，连接可能在检测任务执行之前就已经关闭，不再调度
+                return;
+            }
+            if (readerIdleNanos > 0) {
+                readerTimeout = timer.schedule(this::checkReader, readerIdleNanos, TimeUnit.NANOSECONDS);
+            }
+            if (writerIdleNanos > 0) {
+                writerTimeout = timer.schedule(this::checkWriter, writerIdleNanos, TimeUnit.NANOSECONDS);
+            }
+            if (allIdleNanos > 0) {
+                allTimeout = timer.schedule(this::checkAll, allIdleNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        // 以下检测在连接关闭后直接返回，不再调度：同一个 tick 中先到期的任务关闭了连接时，
+        // 已经在到期列表中的任务取消不掉，仍然会执行
+        private void checkReader() {
+            if (connection.isClosed()) {
+                return;
+            }
+            final long remaining = readerIdleNanos - (System.nanoTime() - connection.lastReadNanos());
+            if (remaining > 0) {
+                // 期间读到过数据，按剩余时间重新调度
+                readerTimeout = timer.schedule(this::checkReader, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            // 先调度下一次检测，监听器中关闭连接时会一起取消
+            readerTimeout = timer.schedule(this::checkReader, readerIdleNanos, TimeUnit.NANOSECONDS);
+            listener.onIdle(connection, IdleState.READER_IDLE);
+        }
+
+        private void checkWriter() {
+            if (connection.isClosed()) {
+                return;
+            }
+            final long remaining = writerIdleNanos - (System.nanoTime() - connection.lastWriteNanos());
+            if (remaining > 0) {
+                writerTimeout = timer.schedule(this::checkWriter, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            writerTimeout = timer.schedule(this::checkWriter, writerIdleNanos, TimeUnit.NANOSECONDS);
+            listener.onIdle(connection, IdleState.WRITER_IDLE);
+        }
+
+        private void checkAll() {
+            if (connection.isClosed()) {
+                return;
+            }
+            final long last = Math.max(connection.lastReadNanos(), connection.lastWriteNanos());
+            final long remaining = allIdleNanos - (System.nanoTime() - last);
+            if (remaining > 0) {
+                allTimeout = timer.schedule(this::checkAll, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            allTimeout = timer.schedule(this::checkAll, allIdleNanos, TimeUnit.NANOSECONDS);
+            listener.onIdle(connection, IdleState.ALL_IDLE);
+        }
+
+        void cancel() {
+            if (readerTimeout != null) {
+                readerTimeout.cancel();
+            }
+            if (writerTimeout != null) {
+                writerTimeout.cancel();
+            }
+            if (allTimeout != null) {
+                allTimeout.cancel();
+            }
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
 
 public class NIOMappedByteBuffer {
 
@@ -24,6 +25,21 @@ public class NIOMappedByteBuffer {
         }
         // 注意：上面的修改，其实已经生效了，只是 IDEA 工具无法刷新导致数据没有变化
         // 可以在本地采用其他工具打开查看
+
+        // 单个 MappedByteBuffer 最大只能映射 Integer.MAX_VALUE 字节，更大的文件使用 NIOMappedFile 按窗口映射
+        // 这里用 1KB 的窗口演示：跨越多个窗口按 long 类型的位置读写
+        try (NIOMappedFile file = new NIOMappedFile(Paths.get("mapped-file.bin"), 4096, 1024)) {
+            for (long offset = 0; offset + Long.BYTES <= file.size(); offset += 1020) {
+                file.putLong(offset, offset);
+            }
+            long sum = 0;
+            for (long offset = 0; offset + Long.BYTES <= file.size(); offset += 1020) {
+                sum += file.getLong(offset);
+            }
+            System.out.println("sum = " + sum);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 }
@@ -0,0 +1,247 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 任意大小文件的内存映射：单个 MappedByteBuffer 最大 Integer.MAX_VALUE 字节，这里按窗口滑动映射
+// 通过 long 类型的绝对位置读写基本类型，数据不进入堆，离开的窗口立即解除映射，不等待 GC
+// 不是线程安全的，多个线程访问需要各自打开
+public class NIOMappedFile implements Closeable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    // 相邻窗口多映射 7 个字节，任何从窗口内开始的 long 都能在一个窗口中读写，不需要拆分
+    // 重叠部分映射的是同一个文件页，通过任意一个窗口修改，另一个窗口都能看到
+    private static final int OVERLAP = Long.BYTES - 1;
+
+    private final FileChannel channel;
+
+    private final FileChannel.MapMode mapMode;
+
+    private final int windowSize;
+
+    private final long size;
+
+    // 预读：顺序访问进入下一个窗口时，提前映射再下一个窗口，并提示操作系统开始读入（见 prefetch）
+    private boolean readAhead = true;
+
+    // 预读时访问到的字节，保存下来避免 JIT 把访问优化掉
+    private byte touched;
+
+    private MappedByteBuffer current;
+
+    private long currentIndex = -1;
+
+    private MappedByteBuffer ahead;
+
+    private long aheadIndex = -1;
+
+    // 只读打开已有文件
+    public NIOMappedFile(Path path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    public NIOMappedFile(Path path, int windowSize) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.READ), FileChannel.MapMode.READ_ONLY, windowSize, -1);
+    }
+
+    // 读写打开，文件不存在时创建，小于 size 时扩展到 size
+    public NIOMappedFile(Path path, long size, int windowSize) throws IOException {
+        this(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                FileChannel.MapMode.READ_WRITE, windowSize, size);
+    }
+
+    private NIOMappedFile(FileChannel channel, FileChannel.MapMode mapMode, int windowSize, long size) throws IOException {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE - OVERLAP) {
+            channel.close();
+            throw new IllegalArgumentException("windowSize: " + windowSize);
+        }
+        this.channel = channel;
+        this.mapMode = mapMode;
+        this.windowSize = windowSize;
+        if (size > channel.size()) {
+            // 写入最后一个字节来扩展文件
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        this.size = size < 0 ? channel.size() : Math.max(size, channel.size());
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void setReadAhead(boolean readAhead) {
+        this.readAhead = readAhead;
+    }
+
+    public byte getByte(long offset) throws IOException {
+        return window(offset, Byte.BYTES).get(relative(offset));
+    }
+
+    public int getInt(long offset) throws IOException {
+        return window(offset, Integer.BYTES).getInt(relative(offset));
+    }
+
+    public long getLong(long offset) throws IOException {
+        return window(offset, Long.BYTES).getLong(relative(offset));
+    }
+
+    public void putByte(long offset, byte value) throws IOException {
+        window(offset, Byte.BYTES).put(relative(offset), value);
+    }
+
+    public void putInt(long offset, int value) throws IOException {
+        window(offset, Integer.BYTES).putInt(relative(offset), value);
+    }
+
+    public void putLong(long offset, long value) throws IOException {
+        window(offset, Long.BYTES).putLong(relative(offset), value);
+    }
+
+    // 把当前窗口的修改写回磁盘
+    public void force() {
+        if (current != null && mapMode == FileChannel.MapMode.READ_WRITE) {
+            current.force();
+        }
+        if (ahead != null && mapMode == FileChannel.MapMode.READ_WRITE) {
+            ahead.force();
+        }
+    }
+
+    private int relative(long offset) {
+        return (int) (offset - currentIndex * windowSize);
+    }
+
+    // 返回包含 [offset, offset + length) 的窗口，必要时滑动
+    private MappedByteBuffer window(long offset, int length) throws IOException {
+        if (offset < 0 || offset > size - length) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", size: " + size);
+        }
+        final long index = offset / windowSize;
+        if (index == currentIndex) {
+            return current;
+        }
+        // 离开的窗口不会再使用，立即解除映射，释放虚拟地址空间
+        unmap(current);
+        if (index == aheadIndex) {
+            // 顺序访问，使用已经预读的窗口
+            current = ahead;
+            ahead = null;
+            aheadIndex = -1;
+            currentIndex = index;
+            if (readAhead) {
+                prefetch(index + 1);
+            }
+        } else {
+            // 从上一个窗口进入紧接着的窗口，也是顺序访问；第一次访问或者随机跳转时不预读
+            final boolean sequential = currentIndex >= 0 && index == currentIndex + 1;
+            unmap(ahead);
+            ahead = null;
+            aheadIndex = -1;
+            current = map(index);
+            currentIndex = index;
+            if (readAhead && sequential) {
+                prefetch(index + 1);
+            }
+        }
+        return current;
+    }
+
+    private void prefetch(long index) throws IOException {
+        if (index * windowSize >= size) {
+            return;
+        }
+        ahead = map(index);
+        aheadIndex = index;
+        // 只访问窗口第一页的一个字节作为提示：调用方只等待这一次缺页，内核处理文件映射的缺页时会按预读窗口
+        // 批量读入后面的页，之后的顺序缺页还会继续触发异步预读。MappedByteBuffer#load 会逐页访问整个窗口，
+        // 窗口很大时调用方要等全部读入；也不在其他线程访问，窗口随时可能被解除映射，其他线程再访问会导致 JVM 崩溃
+        if (ahead.capacity() > 0) {
+            touched ^= ahead.get(0);
+        }
+    }
+
+    private MappedByteBuffer map(long index) throws IOException {
+        final long position = index * windowSize;
+        return channel.map(mapMode, position, Math.min(size - position, (long) windowSize + OVERLAP));
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        unmap(current);
+        unmap(ahead);
+        current = null;
+        ahead = null;
+        currentIndex = -1;
+        aheadIndex = -1;
+        channel.close();
+    }
+
+    // 立即解除映射，之后不能再访问这个 buffer 及其所有视图，否则会导致 JVM 崩溃
+    // JDK 9+ 使用 Unsafe#invokeCleaner，JDK 8 使用 DirectBuffer#cleaner，都不可用时等待 GC 回收
+    public static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else if (CLEANER != null) {
+                final Object cleaner = CLEANER.invoke(buffer);
+                if (cleaner != null) {
+                    CLEAN.invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // 解除映射失败，交给 GC
+        }
+    }
+
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    private static final Method CLEANER;
+
+    private static final Method CLEAN;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+            try {
+                // JDK 8
+                final ByteBuffer probe = ByteBuffer.allocateDirect(1);
+                cleaner = probe.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                clean = cleaner.invoke(probe).getClass().getMethod("clean");
+                clean.setAccessible(true);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        CLEANER = cleaner;
+        CLEAN = clean;
+    }
+
+}
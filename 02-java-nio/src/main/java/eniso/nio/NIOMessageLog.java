@@ -0,0 +1,389 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// 只追加的消息日志，按段存储，每个段是一个固定大小的文件，只有正在写入的段通过 FileChannel#map(READ_WRITE) 映射到内存
+// 写满的段落盘后不再保持映射，回放时按需只读映射；段数超过 maxSegments 时删除最旧的段，映射和磁盘占用都不会随总流量增长
+// 记录直接保存为帧（4 字节长度 + 内容），回放时返回映射内存的只读视图，可以直接写入 SocketChannel
+public class NIOMessageLog implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+    public static final int DEFAULT_INDEX_INTERVAL = 64;
+
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    // 每隔多少条记录保存一个稀疏索引项
+    private final int indexInterval;
+
+    // 最多保留的段数，包括正在写入的段
+    private final int maxSegments;
+
+    // 按起始 offset 升序排列，只有最后一个段可以写入
+    private final List<Segment> segments = new ArrayList<>();
+
+    // 组提交：由后台线程定时 force，append 不会等待磁盘，flushIntervalMillis 为 0 时每次 append 都 force
+    private final ScheduledFuture<?> flushTask;
+
+    // 日志自己创建的后台线程，关闭时一起关闭；使用外部传入的线程时为 null
+    private final ScheduledExecutorService ownFlusher;
+
+    private long nextOffset;
+
+    private boolean closed;
+
+    public NIOMessageLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_INDEX_INTERVAL);
+    }
+
+    public NIOMessageLog(Path directory, int segmentSize, long flushIntervalMillis, int indexInterval) throws IOException {
+        this(directory, segmentSize, flushIntervalMillis, indexInterval, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public NIOMessageLog(Path directory, int segmentSize, long flushIntervalMillis, int indexInterval,
+                         int maxSegments) throws IOException {
+        this(directory, segmentSize, flushIntervalMillis, indexInterval, maxSegments, null);
+    }
+
+    // flusher 不为 null 时在其中定时落盘，多个日志共享一个后台线程，日志关闭时只取消自己的任务，不关闭 flusher
+    public NIOMessageLog(Path directory, int segmentSize, long flushIntervalMillis, int indexInterval,
+                         int maxSegments, ScheduledExecutorService flusher) throws IOException {
+        if (segmentSize <= NIOFrameDecoder.HEADER_LENGTH) {
+            throw new IllegalArgumentException("segmentSize: " + segmentSize + " (expected: > " + NIOFrameDecoder.HEADER_LENGTH + ")");
+        }
+        if (flushIntervalMillis < 0 || indexInterval <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("flushIntervalMillis: " + flushIntervalMillis + ", indexInterval: " + indexInterval
+                    + ", maxSegments: " + maxSegments);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.indexInterval = indexInterval;
+        this.maxSegments = maxSegments;
+        recover();
+        if (flushIntervalMillis > 0) {
+            if (flusher == null) {
+                flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread thread = new Thread(r, "message-log-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                ownFlusher = flusher;
+            } else {
+                ownFlusher = null;
+            }
+            flushTask = flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flushTask = null;
+            ownFlusher = null;
+        }
+    }
+
+    // 打开目录中已有的段，扫描记录，恢复写入位置和稀疏索引；只有最后一个段映射为可写
+    private void recover() throws IOException {
+        final List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                final String name = path.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        baseOffsets.sort(null);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            final long baseOffset = baseOffsets.get(i);
+            final Segment segment = new Segment(baseOffset, i == baseOffsets.size() - 1);
+            segment.recover();
+            segments.add(segment);
+            nextOffset = baseOffset + segment.count;
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(0, true));
+        }
+        retain();
+    }
+
+    // 追加一条帧格式的记录，返回它的 offset，frame 的 position 不变
+    public synchronized long append(ByteBuffer frame) throws IOException {
+        if (closed) {
+            throw new IOException("消息日志已经关闭");
+        }
+        final int length = frame.remaining();
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("记录长度 " + length + " 超过段大小 " + segmentSize);
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segmentSize - segment.position < length) {
+            // 当前段剩余空间不足，滚动到新的段
+            segment.seal();
+            segment = new Segment(nextOffset, true);
+            segments.add(segment);
+            retain();
+        }
+        segment.append(frame);
+        if (flushTask == null) {
+            segment.force();
+        }
+        return nextOffset++;
+    }
+
+    // 段数超过上限时删除最旧的段，已经返回的回放视图仍然引用着映射，文件删除后由 GC 释放
+    private void retain() {
+        while (segments.size() > maxSegments) {
+            final Segment oldest = segments.remove(0);
+            // 文件马上删除，不需要再落盘
+            oldest.dirty = false;
+            oldest.mapped = null;
+            NIOEventLoop.closeQuietly(oldest.channel);
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    // 返回最近 n 条记录（已经被删除的段中的除外），每个段一个只读视图，内容是连续的帧，不拷贝数据
+    // 写满的段在这里按需只读映射；视图引用映射内存，日志关闭后仍然有效，映射在视图不可达之后才会释放
+    public synchronized List<ByteBuffer> replay(int n) throws IOException {
+        return replay(n, nextOffset);
+    }
+
+    // 返回 end 之前的最近 n 条记录，end 通常是之前取得的 nextOffset，之后追加的记录不包括在内
+    public synchronized List<ByteBuffer> replay(int n, long end) throws IOException {
+        final List<ByteBuffer> views = new ArrayList<>();
+        end = Math.min(end, nextOffset);
+        if (n <= 0 || end <= 0 || closed) {
+            return views;
+        }
+        final long from = Math.max(0, end - n);
+        // 从包含 from 的段开始
+        int index = segments.size() - 1;
+        while (index > 0 && segments.get(index).baseOffset > from) {
+            index--;
+        }
+        for (int i = index; i < segments.size() && segments.get(i).baseOffset < end; i++) {
+            final Segment segment = segments.get(i);
+            if (segment.position == 0) {
+                continue;
+            }
+            final ByteBuffer data = segment.data();
+            final int start = segment.positionOf(Math.max(from, segment.baseOffset), data);
+            final int stop = segment.positionOf(end, data);
+            if (start < stop) {
+                final ByteBuffer view = data.asReadOnlyBuffer();
+                view.limit(stop).position(start);
+                views.add(view);
+            }
+        }
+        return views;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // 把还没有落盘的数据 force 到磁盘，由后台线程定时调用
+    // force 在锁外执行，落盘期间不阻塞 append；只在锁内取出映射的引用，段滚动、删除时把字段置为 null 也不影响这里
+    // 映射不会被主动解除（见 close），这里不会访问已经解除映射的内存
+    public void flush() {
+        final List<Segment> dirty = new ArrayList<>();
+        final List<MappedByteBuffer> buffers = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (Segment segment : segments) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                    buffers.add(segment.mapped);
+                }
+            }
+        }
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.force();
+        }
+        synchronized (this) {
+            for (Segment segment : dirty) {
+                // 写满的段已经全部落盘，不再保持可写映射；落盘期间又写入了数据的段还是 dirty，等下一次
+                if (segment.sealed && !segment.dirty) {
+                    segment.mapped = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    // 关闭后不再接受 append，已经返回的 replay 视图仍然可以读取
+    // 不主动解除映射：回放视图可能还在连接的待发送队列中，访问已经解除映射的内存会导致 JVM 崩溃，
+    // 映射在所有视图都不可达之后由 GC 释放
+    public void close() throws IOException {
+        if (flushTask != null) {
+            // 共享的 flusher 中可能正在执行这个日志的 flush，不等待它结束：flush 只在锁外 force 取出的映射，
+            // 映射不会被解除，关闭之后再开始的 flush 看到 closed 直接返回
+            flushTask.cancel(false);
+        }
+        if (ownFlusher != null) {
+            ownFlusher.shutdown();
+            try {
+                ownFlusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments) {
+                segment.force();
+                segment.mapped = null;
+                segment.channel.close();
+            }
+        }
+    }
+
+    private final class Segment {
+        final long baseOffset;
+
+        final Path path;
+
+        final FileChannel channel;
+
+        // 正在写入的段的可写映射；写满并落盘后置为 null，之后回放时按需只读映射
+        MappedByteBuffer mapped;
+
+        // 已经写满，不会再追加
+        boolean sealed;
+
+        // 下一条记录的写入位置
+        int position;
+
+        // 段中的记录数
+        int count;
+
+        // 上次 force 之后是否有新的写入
+        boolean dirty;
+
+        // 稀疏索引：第 i 项表示第 i * indexInterval 条记录在段中的位置
+        int[] index = new int[16];
+
+        int indexSize;
+
+        Segment(long baseOffset, boolean active) throws IOException {
+            this.baseOffset = baseOffset;
+            path = directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (active) {
+                // 映射整个段，文件不足时会被扩展，未写入的部分都是 0
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            } else {
+                sealed = true;
+            }
+        }
+
+        // 段的内容：正在写入的段直接使用可写映射，写满的段只读映射已经写入的部分
+        ByteBuffer data() throws IOException {
+            if (mapped != null) {
+                return mapped;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+        }
+
+        // 逐条扫描，直到遇到长度为 0 或者不完整的记录
+        void recover() throws IOException {
+            final ByteBuffer data = mapped != null ? mapped
+                    : channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), segmentSize));
+            final int limit = data.capacity();
+            while (limit - position >= NIOFrameDecoder.HEADER_LENGTH) {
+                final int length = data.getInt(position);
+                if (length <= 0 || length > limit - position - NIOFrameDecoder.HEADER_LENGTH) {
+                    break;
+                }
+                addIndex();
+                position += NIOFrameDecoder.HEADER_LENGTH + length;
+                count++;
+            }
+        }
+
+        void append(ByteBuffer frame) {
+            addIndex();
+            // 在锁内临时移动 mapped 和 frame 的 position，写完后恢复 frame 的 position，不创建视图
+            // 回放在锁内创建视图并设置自己的 position / limit，落盘只与容量有关，都不受 mapped 的 position 影响
+            final int start = frame.position();
+            mapped.position(position);
+            mapped.put(frame);
+            frame.position(start);
+            position = mapped.position();
+            count++;
+            dirty = true;
+        }
+
+        // 不再追加；没有未落盘的数据时立即释放可写映射，否则由下一次 flush 落盘后释放
+        void seal() {
+            sealed = true;
+            if (!dirty) {
+                mapped = null;
+            }
+        }
+
+        private void addIndex() {
+            if (count % indexInterval != 0) {
+                return;
+            }
+            if (indexSize == index.length) {
+                index = Arrays.copyOf(index, indexSize << 1);
+            }
+            index[indexSize++] = position;
+        }
+
+        // 通过稀疏索引找到最近的索引项，再向后逐条跳过，最多跳过 indexInterval - 1 条
+        int positionOf(long offset, ByteBuffer data) {
+            final long relative = offset - baseOffset;
+            if (relative >= count) {
+                return position;
+            }
+            final int slot = (int) (relative / indexInterval);
+            int pos = index[slot];
+            for (long i = (long) slot * indexInterval; i < relative; i++) {
+                pos += NIOFrameDecoder.HEADER_LENGTH + data.getInt(pos);
+            }
+            return pos;
+        }
+
+        void force() {
+            if (dirty && mapped != null) {
+                mapped.force();
+            }
+            dirty = false;
+        }
+    }
+
+}
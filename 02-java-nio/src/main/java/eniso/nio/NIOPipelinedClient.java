@@ -0,0 +1,97 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// 请求/响应模式的客户端，配合 NIOBasicServer pipeline 使用
+// 一次发送 depth 个请求，再一次性读取 depth 个响应，depth 为 1 时就是普通的一问一答
+public class NIOPipelinedClient implements Closeable {
+
+    private static final int RESPONSE_HEADER_LENGTH = NIOFrameDecoder.HEADER_LENGTH + NIOBasicServer.CORRELATION_ID_LENGTH;
+
+    private final SocketChannel channel;
+
+    private final byte[] payload;
+
+    private ByteBuffer requests;
+
+    private ByteBuffer responses;
+
+    private long nextCorrelationId;
+
+    public NIOPipelinedClient(String ip, int port, byte[] payload) throws IOException {
+        // 阻塞模式，写完一批请求后阻塞读取响应
+        channel = SocketChannel.open(new InetSocketAddress(ip, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.payload = payload;
+        requests = ByteBuffer.allocateDirect(RESPONSE_HEADER_LENGTH + payload.length);
+        responses = ByteBuffer.allocateDirect(RESPONSE_HEADER_LENGTH + payload.length);
+    }
+
+    // 发送 depth 个请求，等待全部响应，校验关联 ID 与请求一一对应
+    public void roundTrip(int depth) throws IOException {
+        final int frameLength = RESPONSE_HEADER_LENGTH + payload.length;
+        if (requests.capacity() < depth * frameLength) {
+            requests = ByteBuffer.allocateDirect(depth * frameLength);
+            responses = ByteBuffer.allocateDirect(depth * frameLength);
+        }
+        final long firstId = nextCorrelationId;
+        requests.clear();
+        for (int i = 0; i < depth; i++) {
+            requests.putInt(NIOBasicServer.CORRELATION_ID_LENGTH + payload.length);
+            requests.putLong(nextCorrelationId++);
+            requests.put(payload);
+        }
+        requests.flip();
+        // 所有请求合并为一次 write
+        while (requests.hasRemaining()) {
+            channel.write(requests);
+        }
+        // 回显服务的响应与请求等长，读满即可
+        responses.clear().limit(depth * frameLength);
+        while (responses.hasRemaining()) {
+            if (channel.read(responses) == -1) {
+                throw new IOException("服务器断开连接");
+            }
+        }
+        responses.flip();
+        for (int i = 0; i < depth; i++) {
+            final int position = i * frameLength;
+            final long correlationId = responses.getLong(position + NIOFrameDecoder.HEADER_LENGTH);
+            if (correlationId != firstId + i) {
+                throw new IOException("关联 ID 不匹配，期望 " + (firstId + i) + "，实际 " + correlationId);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String[] args) {
+        final int total = 200_000;
+        try (NIOPipelinedClient client = new NIOPipelinedClient("127.0.0.1", 7070, "ping".getBytes())) {
+            // 预热
+            for (int i = 0; i < 10_000; i++) {
+                client.roundTrip(16);
+            }
+            // 同样的请求数，pipeline 越深，系统调用和网络往返越少
+            for (int depth : new int[]{1, 4, 16, 64, 256}) {
+                final long start = System.nanoTime();
+                for (int i = 0; i < total / depth; i++) {
+                    client.roundTrip(depth);
+                }
+                final long elapsed = System.nanoTime() - start;
+                System.out.printf("depth %3d: %,.0f 请求/秒%n", depth, (double) (total / depth * depth) * 1e9 / elapsed);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package eniso.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 自适应的接收 buffer 大小，思路与 Netty 的 AdaptiveRecvByteBufAllocator 相同：
+// 根据连接最近一次事件中实际读到的字节数，预测下一次读取的大小，读满了就快速变大，连续两次读不满才慢慢变小
+// 同时限制一次事件中对同一个连接最多读取几次，数据多的连接可以多读几次，但不会饿死同一个事件循环上的其他连接
+// 分配器本身不可变，可以被所有连接共享，每个连接通过 newHandle 创建自己的 Handle
+public final class NIORecvBufferAllocator {
+
+    public static final int DEFAULT_MINIMUM = 64;
+
+    public static final int DEFAULT_INITIAL = 2048;
+
+    public static final int DEFAULT_MAXIMUM = 64 * 1024;
+
+    public static final int DEFAULT_MAX_READS_PER_EVENT = 16;
+
+    // 变大时在大小表中前进 4 格，变小时后退 1 格
+    private static final int INDEX_INCREMENT = 4;
+
+    private static final int INDEX_DECREMENT = 1;
+
+    // 大小表：16 ~ 496 每 16 字节一档，512 之后每档翻倍
+    private static final int[] SIZE_TABLE;
+
+    static {
+        final List<Integer> sizes = new ArrayList<>();
+        for (int i = 16; i < 512; i += 16) {
+            sizes.add(i);
+        }
+        for (int i = 512; i > 0; i <<= 1) {
+            sizes.add(i);
+        }
+        SIZE_TABLE = new int[sizes.size()];
+        for (int i = 0; i < SIZE_TABLE.length; i++) {
+            SIZE_TABLE[i] = sizes.get(i);
+        }
+    }
+
+    // 需要在大小表初始化之后创建
+    public static final NIORecvBufferAllocator DEFAULT = new NIORecvBufferAllocator();
+
+    private final int minIndex;
+
+    private final int maxIndex;
+
+    private final int initial;
+
+    private final int maxReadsPerEvent;
+
+    public NIORecvBufferAllocator() {
+        this(DEFAULT_MINIMUM, DEFAULT_INITIAL, DEFAULT_MAXIMUM, DEFAULT_MAX_READS_PER_EVENT);
+    }
+
+    public NIORecvBufferAllocator(int minimum, int initial, int maximum, int maxReadsPerEvent) {
+        if (minimum <= 0 || initial < minimum || maximum < initial) {
+            throw new IllegalArgumentException("minimum: " + minimum + ", initial: " + initial + ", maximum: " + maximum);
+        }
+        if (maxReadsPerEvent <= 0) {
+            throw new IllegalArgumentException("maxReadsPerEvent: " + maxReadsPerEvent + " (expected: > 0)");
+        }
+        // 最小值向上取到大小表中的一档，最大值向下取，保证预测值在 [minimum, maximum] 之内
+        int min = sizeTableIndex(minimum);
+        minIndex = SIZE_TABLE[min] < minimum ? min + 1 : min;
+        int max = sizeTableIndex(maximum);
+        maxIndex = SIZE_TABLE[max] > maximum ? max - 1 : max;
+        this.initial = initial;
+        this.maxReadsPerEvent = maxReadsPerEvent;
+    }
+
+    public Handle newHandle() {
+        return new Handle();
+    }
+
+    // 二分查找不小于 size 的第一档
+    private static int sizeTableIndex(int size) {
+        int low = 0;
+        int high = SIZE_TABLE.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (SIZE_TABLE[mid] < size) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // 每个连接一个，只在连接所属的事件循环线程中使用
+    // 用法：reset -> (guess -> 读取 -> lastBytesRead)* 直到 continueReading 返回 false -> readComplete
+    public final class Handle {
+        private int index;
+
+        private int nextReceiveBufferSize;
+
+        // 上一次已经满足了变小的条件，再满足一次才真正变小
+        private boolean decreaseNow;
+
+        private int reads;
+
+        private int lastBytesRead;
+
+        private int attemptedBytesRead;
+
+        private long totalBytesRead;
+
+        private Handle() {
+            index = Math.max(minIndex, Math.min(maxIndex, sizeTableIndex(initial)));
+            nextReceiveBufferSize = SIZE_TABLE[index];
+        }
+
+        // 一次事件开始，清空本次事件的统计
+        public void reset() {
+            reads = 0;
+            totalBytesRead = 0;
+        }
+
+        // 下一次读取的字节数
+        public int guess() {
+            return nextReceiveBufferSize;
+        }
+
+        public void attemptedBytesRead(int bytes) {
+            attemptedBytesRead = bytes;
+        }
+
+        public void lastBytesRead(int bytes) {
+            lastBytesRead = bytes;
+            if (bytes > 0) {
+                reads++;
+                totalBytesRead += bytes;
+                if (bytes == attemptedBytesRead) {
+                    // 一次就读满了，不用等到事件结束，立即变大，本次事件剩下的读取就能用上
+                    record(bytes);
+                }
+            }
+        }
+
+        // 上一次读满了说明通道中可能还有数据，继续读，但不超过每次事件的上限
+        public boolean continueReading() {
+            return lastBytesRead > 0 && lastBytesRead == attemptedBytesRead && reads < maxReadsPerEvent;
+        }
+
+        // 一次事件结束，按本次事件读到的总字节数调整预测值
+        public void readComplete() {
+            if (totalBytesRead > 0) {
+                record((int) Math.min(totalBytesRead, Integer.MAX_VALUE));
+            }
+        }
+
+        public int reads() {
+            return reads;
+        }
+
+        private void record(int actualReadBytes) {
+            if (actualReadBytes <= SIZE_TABLE[Math.max(0, index - INDEX_DECREMENT)]) {
+                if (decreaseNow) {
+                    index = Math.max(index - INDEX_DECREMENT, minIndex);
+                    nextReceiveBufferSize = SIZE_TABLE[index];
+                    decreaseNow = false;
+                } else {
+                    decreaseNow = true;
+                }
+            } else if (actualReadBytes >= nextReceiveBufferSize) {
+                index = Math.min(index + INDEX_INCREMENT, maxIndex);
+                nextReceiveBufferSize = SIZE_TABLE[index];
+                decreaseNow = false;
+            }
+        }
+    }
+
+}
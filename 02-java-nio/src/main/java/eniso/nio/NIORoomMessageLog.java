@@ -0,0 +1,169 @@
+package eniso.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// 按房间划分的消息日志：每个房间一个 NIOMessageLog，保存在 directory 下以房间名命名的子目录中
+// 回放只返回所在房间的消息，不会把其他房间的消息发给刚进入某个房间的用户
+// 所有房间的日志共享一个落盘线程；同时打开的日志不超过 maxOpenLogs 个，超过时关闭最久没有访问的日志，需要时再从磁盘打开
+public class NIORoomMessageLog implements Closeable {
+
+    // 房间可能很多，每个房间的段比单个日志小、保留的段也少，避免每个房间都映射 64 MB、占用 1 GB 磁盘
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+    public static final int DEFAULT_MAX_OPEN_LOGS = 64;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxOpenLogs;
+
+    private final ScheduledExecutorService flusher;
+
+    // 以下字段都由 this 保护，日志在第一次追加时创建，磁盘上已有的日志在第一次回放时打开
+    // 按访问顺序排列，第一个是最久没有访问的日志
+    private final Map<String, NIOMessageLog> logs = new LinkedHashMap<>(16, 0.75f, true);
+
+    private boolean closed;
+
+    public NIORoomMessageLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_OPEN_LOGS);
+    }
+
+    public NIORoomMessageLog(Path directory, int segmentSize, int maxOpenLogs) throws IOException {
+        if (maxOpenLogs <= 0) {
+            throw new IllegalArgumentException("maxOpenLogs: " + maxOpenLogs + " (expected: > 0)");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxOpenLogs = maxOpenLogs;
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "room-message-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // 追加一条帧格式的记录到房间的日志中，frame 的 position 不变
+    public long append(String room, ByteBuffer frame) throws IOException {
+        while (true) {
+            // 日志自己加锁，追加时不持有 this，不同房间的追加互不阻塞
+            final NIOMessageLog log = log(room, true);
+            try {
+                return log.append(frame);
+            } catch (IOException e) {
+                // 取出日志之后它被其他线程淘汰关闭了，重新打开再追加
+                if (!log.isClosed()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // 房间日志的下一个 offset，房间没有日志时返回 0，配合 replay(room, n, end) 回放这之前的记录
+    public long nextOffset(String room) throws IOException {
+        final NIOMessageLog log = log(room, false);
+        return log == null ? 0 : log.nextOffset();
+    }
+
+    // 返回房间最近 n 条记录的只读视图，房间没有日志时返回空列表
+    public List<ByteBuffer> replay(String room, int n) throws IOException {
+        return replay(room, n, Long.MAX_VALUE);
+    }
+
+    // 返回房间 end 之前的最近 n 条记录的只读视图
+    public List<ByteBuffer> replay(String room, int n, long end) throws IOException {
+        final NIOMessageLog log = log(room, false);
+        // 取出之后被淘汰关闭的日志返回空列表，只是少回放一次历史
+        return log == null ? Collections.<ByteBuffer>emptyList() : log.replay(n, end);
+    }
+
+    private synchronized NIOMessageLog log(String room, boolean create) throws IOException {
+        if (closed) {
+            throw new IOException("消息日志已经关闭");
+        }
+        NIOMessageLog log = logs.get(room);
+        if (log == null) {
+            final Path path = directory.resolve(directoryName(room));
+            if (!create && !Files.isDirectory(path)) {
+                return null;
+            }
+            evict();
+            log = new NIOMessageLog(path, segmentSize, NIOMessageLog.DEFAULT_FLUSH_INTERVAL_MILLIS,
+                    NIOMessageLog.DEFAULT_INDEX_INTERVAL, DEFAULT_MAX_SEGMENTS, flusher);
+            logs.put(room, log);
+        }
+        return log;
+    }
+
+    // 在锁内关闭最久没有访问的日志：同一个房间的日志关闭完成之前不会被重新打开，不会有两个日志同时写一个目录
+    // 关闭只 force 正在写入的段，不等待落盘线程
+    private void evict() {
+        final Iterator<NIOMessageLog> iterator = logs.values().iterator();
+        while (logs.size() >= maxOpenLogs && iterator.hasNext()) {
+            final NIOMessageLog eldest = iterator.next();
+            iterator.remove();
+            try {
+                eldest.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 房间名由用户输入，可能包含 / 或 ..，转换为 UTF-8 字节的十六进制作为目录名，不会逃出 directory
+    private static String directoryName(String room) {
+        final StringBuilder builder = new StringBuilder();
+        for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    // 关闭所有房间的日志，已经返回的回放视图仍然可以读取
+    @Override
+    public void close() throws IOException {
+        final List<NIOMessageLog> opened;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            opened = new ArrayList<>(logs.values());
+            logs.clear();
+        }
+        flusher.shutdown();
+        IOException failure = null;
+        for (NIOMessageLog log : opened) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+}
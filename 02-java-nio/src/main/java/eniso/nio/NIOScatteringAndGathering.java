@@ -4,8 +4,10 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 public class NIOScatteringAndGathering {
@@ -32,8 +34,10 @@ public class NIOScatteringAndGathering {
             long totalRead = 0;
             long totalWrite = 0;
             while (true) { // 循环读取
-                // 清除 buffers
-                Arrays.stream(buffers).forEach(ByteBuffer::clear);
+                // 清除 buffers，循环中使用普通的 for 循环，不在每次读写时创建 Stream
+                for (ByteBuffer buffer : buffers) {
+                    buffer.clear();
+                }
 
                 // 读取数据
                 final long read = socketChannel.read(buffers);
@@ -44,18 +48,17 @@ public class NIOScatteringAndGathering {
                 }
                 totalRead += read;
                 System.out.println("累计读取到 " + totalRead + " 字节，当前读取到 " + read + " 字节，最大容量 " + maxCapacity + " 字节");
-                Arrays.stream(buffers)
-                        .map(b -> "position=" + b.position() + ", limit=" + b.limit())
-                        .forEach(System.out::println);
+                for (ByteBuffer buffer : buffers) {
+                    System.out.println("position=" + buffer.position() + ", limit=" + buffer.limit());
+                }
 
                 // 回显数据
-                // 对所有的 buffer 执行读写切换
-                Arrays.stream(buffers).forEach(Buffer::flip);
-                // 计算 buffers 总大小
-                int maxLimit = Arrays.stream(buffers)
-                        .map(Buffer::limit)
-                        .reduce(Integer::sum)
-                        .orElse(0);
+                // 对所有的 buffer 执行读写切换，同时计算 buffers 总大小
+                int maxLimit = 0;
+                for (ByteBuffer buffer : buffers) {
+                    buffer.flip();
+                    maxLimit += buffer.limit();
+                }
                 final long write = socketChannel.write(buffers);
                 totalWrite += write;
                 System.out.println("累计写入了 " + totalWrite + " 字节，当前写入了 " + write + " 字节，当前总 limit " + maxLimit + " 字节");
@@ -73,15 +76,35 @@ public class NIOScatteringAndGathering {
                 // 发送完毕，关闭输出
                 socketChannel.shutdownOutput();
 
-                // 接收数据
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
-                while (true) {
-                    buffer.clear();
-                    final int read = socketChannel.read(buffer);
-                    if (read == -1) {
-                        break;
-                    }
-                    System.out.println("回显数据：" + new String(buffer.array(), 0, read));
+                // 接收数据：NIOByteBuf 不需要 clear / flip，数据超过初始容量时自动扩容，读到 EOF 后一次输出
+                NIOByteBuf buf = NIOByteBuf.allocate(16);
+                int read;
+                while ((read = buf.writeBytes(socketChannel, 16)) != -1) {
+                    System.out.println("本次读取 " + read + " 字节，" + buf);
+                }
+                System.out.println("回显数据：" + buf.toString(Charset.defaultCharset()));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void codec() {
+        // 实际的协议：头部、body、尾部各自一个 buffer，一次 Gathering write 发送，一次 Scattering read 接收
+        try {
+            final Pipe pipe = Pipe.open();
+            try (Pipe.SourceChannel source = pipe.source()) {
+                // 写完后关闭写入端，读取端才会读到 -1
+                try (Pipe.SinkChannel sink = pipe.sink()) {
+                    final NIOVectoredCodec.Encoder encoder = new NIOVectoredCodec.Encoder();
+                    encoder.write(sink, 1, ByteBuffer.wrap("hello".getBytes()));
+                    encoder.write(sink, 2, ByteBuffer.wrap("vectored codec".getBytes()));
+                }
+
+                final NIOVectoredCodec.Decoder decoder = new NIOVectoredCodec.Decoder();
+                while (decoder.read(source, (type, body) ->
+                        System.out.println("收到消息，类型 " + type + "：" + NIOFrameDecoder.toString(body))) != -1) {
+                    // 继续读取，直到写入端关闭
                 }
             }
         } catch (IOException e) {
@@ -110,6 +133,8 @@ public class NIOScatteringAndGathering {
 //      TODO: 客户端能一次拿到 hello123，说明 Gathering 生效了
 //      累计写入了 10 字节，当前写入了 2 字节，当前总 limit 2 字节
 //      回显数据：45
+
+        codec();
     }
 
 }
@@ -0,0 +1,128 @@
+package eniso.nio;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// 数组实现的 selectedKeys，思路与 Netty 的 SelectedSelectionKeySet 相同
+// JDK 的 SelectorImpl 用 HashSet 保存 selectedKeys，每次 select 都要计算哈希、创建 Iterator，key 多时还会扩容
+// 这里通过反射把 SelectorImpl 中的 selectedKeys / publicSelectedKeys 替换为数组，select 时 add 只是追加到数组末尾，
+// 事件循环按下标遍历，整个过程不分配内存；替换失败（非 HotSpot 的实现、JDK 限制了反射）时继续使用 JDK 的 HashSet
+public final class NIOSelectedKeySet extends AbstractSet<SelectionKey> {
+
+    // 设置为 true 时不替换，用于对比
+    private static final boolean DISABLED = Boolean.getBoolean("eniso.nio.noSelectedKeySetOptimization");
+
+    SelectionKey[] keys = new SelectionKey[1024];
+
+    int size;
+
+    // 替换 selector 的 selectedKeys，成功时返回替换后的集合，失败时返回 null
+    public static NIOSelectedKeySet install(Selector selector) {
+        if (DISABLED) {
+            return null;
+        }
+        try {
+            final Class<?> selectorImpl = Class.forName("sun.nio.ch.SelectorImpl", false,
+                    ClassLoader.getSystemClassLoader());
+            if (!selectorImpl.isAssignableFrom(selector.getClass())) {
+                return null;
+            }
+            final Field selectedKeysField = selectorImpl.getDeclaredField("selectedKeys");
+            final Field publicSelectedKeysField = selectorImpl.getDeclaredField("publicSelectedKeys");
+            final NIOSelectedKeySet keySet = new NIOSelectedKeySet();
+            try {
+                // JDK 8 可以直接反射修改
+                selectedKeysField.setAccessible(true);
+                publicSelectedKeysField.setAccessible(true);
+                selectedKeysField.set(selector, keySet);
+                publicSelectedKeysField.set(selector, keySet);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // JDK 9+ 的 sun.nio.ch 没有对外开放（除非 --add-opens），通过 Unsafe 按字段偏移量写入
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                final Object unsafe = theUnsafe.get(null);
+                final Method objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+                final Method putObject = unsafeClass.getMethod("putObject", Object.class, long.class, Object.class);
+                putObject.invoke(unsafe, selector, objectFieldOffset.invoke(unsafe, selectedKeysField), keySet);
+                putObject.invoke(unsafe, selector, objectFieldOffset.invoke(unsafe, publicSelectedKeysField), keySet);
+            }
+            return keySet;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            System.err.println("selectedKeys 替换失败，使用 JDK 默认实现：" + e);
+            return null;
+        }
+    }
+
+    // 由 Selector 在 select 期间调用
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null) {
+            return false;
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+        }
+        keys[size++] = key;
+        return true;
+    }
+
+    // 一次 select 中同一个 key 只会出现一次，不需要查找，SelectorImpl 据此直接 add
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public SelectionKey get(int index) {
+        return keys[index];
+    }
+
+    // 处理完一轮之后调用，释放对 key 的引用
+    public void reset() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    // 只读的迭代器，用于兼容直接遍历 selector.selectedKeys() 的代码
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keys[index++];
+            }
+        };
+    }
+
+}
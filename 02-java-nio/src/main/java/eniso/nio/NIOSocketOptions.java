@@ -0,0 +1,35 @@
+package eniso.nio;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.nio.channels.NetworkChannel;
+
+// JDK 8 没有的 socket 选项。项目按 JDK 8 编译，不能直接引用 StandardSocketOptions 中 JDK 9 新增的常量，
+// 按名字在通道支持的选项中查找，运行在新版本 JDK 上时就能用到
+public final class NIOSocketOptions {
+
+    private NIOSocketOptions() {
+    }
+
+    // SO_REUSEPORT（JDK 9+，Linux 3.9+ / BSD / macOS），当前 JDK 或操作系统不支持时返回 null
+    @SuppressWarnings("unchecked")
+    public static SocketOption<Boolean> reusePort(NetworkChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name()) && option.type() == Boolean.class) {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+        return null;
+    }
+
+    // 多个通道设置 SO_REUSEPORT 后可以绑定同一个端口，由内核把新连接分散到这些通道上，需要在 bind 之前调用
+    public static void setReusePort(NetworkChannel channel) throws IOException {
+        final SocketOption<Boolean> option = reusePort(channel);
+        if (option == null) {
+            throw new UnsupportedOperationException("当前 JDK 或操作系统不支持 SO_REUSEPORT，JDK "
+                    + System.getProperty("java.version") + "，" + System.getProperty("os.name"));
+        }
+        channel.setOption(option, true);
+    }
+
+}
@@ -0,0 +1,158 @@
+package eniso.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.zip.CRC32;
+
+// 消息格式：头部（4 字节类型 + 4 字节 body 长度） + body + 尾部（4 字节 body 的 CRC32）
+// 发送：头部、body、尾部保存在各自的 buffer 中，通过一次 Gathering write 发送，不需要合并拷贝
+// 接收：通过一次 Scattering read 同时读入头部 buffer 和 body buffer
+// 编码器和解码器都不是线程安全的，每个连接各自一个
+public final class NIOVectoredCodec {
+
+    public static final int HEADER_LENGTH = 8;
+
+    public static final int TRAILER_LENGTH = 4;
+
+    public static final int DEFAULT_MAX_BODY_LENGTH = 64 * 1024;
+
+    private NIOVectoredCodec() {
+    }
+
+    public interface MessageHandler {
+        // body 是解码器内部 buffer 的视图，只在回调期间有效
+        void onMessage(int type, ByteBuffer body) throws IOException;
+    }
+
+    public static final class Encoder {
+        private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH);
+
+        private final ByteBuffer trailer = ByteBuffer.allocateDirect(TRAILER_LENGTH);
+
+        // 复用的数组，避免每条消息创建一个新数组
+        private final ByteBuffer[] buffers = {header, null, trailer};
+
+        private final CRC32 crc = new CRC32();
+
+        // 准备发送一条消息，body 不会被拷贝，发送完成之前不能修改
+        public void prepare(int type, ByteBuffer body) {
+            header.clear();
+            header.putInt(type).putInt(body.remaining()).flip();
+            crc.reset();
+            crc.update(body.duplicate());
+            trailer.clear();
+            trailer.putInt((int) crc.getValue()).flip();
+            buffers[1] = body;
+        }
+
+        // 已经准备好的头部、body、尾部，用于自己控制发送方式
+        public ByteBuffer[] buffers() {
+            return buffers;
+        }
+
+        // 非阻塞通道上发送已经准备好的消息，返回 true 表示已经全部发送，否则等待 OP_WRITE 后再次调用
+        public boolean flush(GatheringByteChannel channel) throws IOException {
+            // 一次系统调用写出三个 buffer，部分写入时各个 buffer 的 position 会记住进度
+            channel.write(buffers);
+            if (trailer.hasRemaining()) {
+                return false;
+            }
+            buffers[1] = null;
+            return true;
+        }
+
+        // 阻塞通道上发送一条消息，返回发送的字节数
+        public long write(GatheringByteChannel channel, int type, ByteBuffer body) throws IOException {
+            prepare(type, body);
+            final long total = HEADER_LENGTH + body.remaining() + TRAILER_LENGTH;
+            while (!flush(channel)) {
+                Thread.yield();
+            }
+            return total;
+        }
+    }
+
+    public static final class Decoder {
+        private final int maxBodyLength;
+
+        private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH);
+
+        // 写模式，保存 body + 尾部，头部还没读完整时也会先读入后续的数据
+        private final ByteBuffer body;
+
+        private final ByteBuffer[] buffers;
+
+        private final CRC32 crc = new CRC32();
+
+        private int type;
+
+        // 当前消息的 body 长度，-1 表示头部还没有解析
+        private int bodyLength = -1;
+
+        public Decoder() {
+            this(DEFAULT_MAX_BODY_LENGTH);
+        }
+
+        public Decoder(int maxBodyLength) {
+            this.maxBodyLength = maxBodyLength;
+            // 直接内存，Scattering read 不需要再经过 JDK 内部的临时直接内存中转
+            body = ByteBuffer.allocateDirect(maxBodyLength + TRAILER_LENGTH);
+            buffers = new ByteBuffer[]{header, body};
+        }
+
+        // 从通道读取一次，并回调所有已经完整的消息，返回读取到的字节数，-1 表示对端已关闭
+        public long read(ScatteringByteChannel channel, MessageHandler handler) throws IOException {
+            if (bodyLength < 0) {
+                // 还不知道 body 的长度：头部剩余部分和 body 的整个空闲区域一起读，多读到的数据属于后续消息
+                body.limit(body.capacity());
+            } else {
+                // 已经知道长度，只读到当前消息的末尾，不需要后续的拷贝
+                body.limit(bodyLength + TRAILER_LENGTH);
+            }
+            final long read = channel.read(buffers);
+            if (read > 0) {
+                decode(handler);
+            }
+            return read;
+        }
+
+        private void decode(MessageHandler handler) throws IOException {
+            while (!header.hasRemaining()) {
+                if (bodyLength < 0) {
+                    type = header.getInt(0);
+                    bodyLength = header.getInt(4);
+                    if (bodyLength < 0 || bodyLength > maxBodyLength) {
+                        throw new IOException("消息长度异常 " + bodyLength + "，最大允许 " + maxBodyLength);
+                    }
+                }
+                final int messageEnd = bodyLength + TRAILER_LENGTH;
+                if (body.position() < messageEnd) {
+                    return;
+                }
+                final ByteBuffer view = body.duplicate();
+                view.limit(bodyLength).position(0);
+                crc.reset();
+                crc.update(view.duplicate());
+                if ((int) crc.getValue() != body.getInt(bodyLength)) {
+                    throw new IOException("消息校验失败，类型 " + type + "，长度 " + bodyLength);
+                }
+                handler.onMessage(type, view);
+                next(messageEnd);
+            }
+        }
+
+        // 当前消息已经处理完，把多读到的数据移动到头部和 body 的开头
+        private void next(int messageEnd) {
+            header.clear();
+            bodyLength = -1;
+            body.limit(body.position()).position(messageEnd);
+            while (header.hasRemaining() && body.hasRemaining()) {
+                header.put(body.get());
+            }
+            body.compact();
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package eniso.benchmark;
+
+import eniso.bio.BIOServer;
+import eniso.nio.NIOGroupChatServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+// 模拟大量客户端同时重连：多个线程不停地建立连接、关闭输出，等待服务端 accept 并处理完 EOF 后关闭连接
+// 结果为每秒完成 accept 的连接数，对比只有一个监听通道和通过 SO_REUSEPORT 绑定多个监听通道
+@State(Scope.Benchmark)
+@Threads(16)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcceptStormBenchmark {
+
+    // 同一个端口上的监听通道数量，每个由自己的线程（事件循环）accept
+    @Param({"1", "4"})
+    public int acceptors;
+
+    @Param({"NIO", "BIO"})
+    public String server;
+
+    private BIOServer bioServer;
+
+    private NIOGroupChatServer nioServer;
+
+    private int port;
+
+    // 每个线程一个接收 buffer，BIOServer 只会在收到数据时回显，这里只用来等待 EOF
+    @State(Scope.Thread)
+    public static class Client {
+        final byte[] buffer = new byte[4096];
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        BenchmarkSupport.silenceStdout();
+        BenchmarkSupport.silenceStderr();
+        port = BenchmarkSupport.freePort();
+        final int backlog = 4096;
+        if ("BIO".equals(server)) {
+            bioServer = new BIOServer(port, BIOServer.ExecutionMode.CACHED,
+                    Runtime.getRuntime().availableProcessors() * 64, backlog, acceptors);
+            BenchmarkSupport.start(bioServer, "bio-server");
+        } else {
+            nioServer = new NIOGroupChatServer(port,
+                    Runtime.getRuntime().availableProcessors(), acceptors, backlog);
+            // 不广播上线、下线通知，否则每个连接都要发给所有在线的连接，测到的是广播而不是 accept
+            nioServer.setPresenceBroadcast(false);
+            BenchmarkSupport.start(nioServer, "group-chat-server");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (bioServer != null) {
+            bioServer.close();
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int accept(Client client) throws IOException {
+        try (Socket socket = BenchmarkSupport.connect(port)) {
+            // 关闭时直接发送 RST，客户端不进入 TIME_WAIT，避免压测过程中耗尽本地端口
+            socket.setSoLinger(true, 0);
+            socket.shutdownOutput();
+            final InputStream is = socket.getInputStream();
+            int total = 0;
+            int read;
+            // 服务端 accept 之后读到 EOF 才会关闭连接，读到 -1 说明这个连接已经被服务端处理
+            while ((read = is.read(client.buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+}
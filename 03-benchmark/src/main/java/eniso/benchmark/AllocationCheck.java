@@ -0,0 +1,55 @@
+package eniso.benchmark;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+
+public class AllocationCheck {
+
+    // 允许的每次操作分配字节数，稳定状态下实测约 0.01 B/op，留出 JMH 自身和偶发对象的余量
+    private static final double DEFAULT_MAX_BYTES_PER_OP = 16;
+
+    // 运行 NIOGroupChatAllocationBenchmark 并检查每组参数的 gc.alloc.rate.norm，超过阈值时以非 0 状态退出
+    // 参数：[每次操作允许分配的字节数]
+    public static void main(String[] args) throws RunnerException {
+        final double maxBytesPerOp = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_MAX_BYTES_PER_OP;
+        final Options options = new OptionsBuilder()
+                .include(NIOGroupChatAllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        final Collection<RunResult> results = new Runner(options).run();
+        boolean failed = results.isEmpty();
+        for (RunResult result : results) {
+            final Result<?> norm = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            final String params = describe(result.getParams());
+            if (norm == null) {
+                System.err.println(params + " 没有 gc.alloc.rate.norm 结果");
+                failed = true;
+            } else if (norm.getScore() > maxBytesPerOp) {
+                System.err.printf("%s 分配 %.2f B/op，超过 %.2f B/op%n", params, norm.getScore(), maxBytesPerOp);
+                failed = true;
+            } else {
+                System.out.printf("%s 分配 %.2f B/op%n", params, norm.getScore());
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static String describe(BenchmarkParams params) {
+        final StringBuilder builder = new StringBuilder(params.getBenchmark());
+        for (String key : params.getParamsKeys()) {
+            builder.append(' ').append(key).append('=').append(params.getParam(key));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,99 @@
+package eniso.benchmark;
+
+import eniso.bio.BIOServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 每次操作：在同一个连接上发送一条以换行结尾的消息，等待服务端回复 1 字节的确认
+// 连接在 Trial 开始时建立，测量的是服务端处理消息的开销，而不是建立和关闭连接
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BIOServerBenchmark {
+
+    // 压测期间额外保持的空闲连接数，BIO 下每个连接占用一个线程
+    @Param({"0", "100", "1000"})
+    public int connections;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    // VIRTUAL 需要 JDK 21+，可以通过 -p mode=VIRTUAL 指定
+    @Param({"CACHED", "BOUNDED"})
+    public String mode;
+
+    private BIOServer server;
+
+    private int port;
+
+    private byte[] message;
+
+    private final List<Socket> idle = new ArrayList<>();
+
+    private Socket socket;
+
+    private OutputStream os;
+
+    private InputStream is;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        BenchmarkSupport.silenceStdout();
+        BenchmarkSupport.silenceStderr();
+        port = BenchmarkSupport.freePort();
+        server = new BIOServer(port, BIOServer.ExecutionMode.valueOf(mode));
+        // 每收到一条完整的消息回复 1 字节，客户端据此知道消息已经被处理
+        server.setStreamHandler((s, data, offset, length) -> s.getOutputStream().write(1));
+        BenchmarkSupport.start(server, "bio-server");
+        // 默认按换行拆分消息
+        message = Arrays.copyOf(BenchmarkSupport.payload(payloadSize), payloadSize + 1);
+        message[payloadSize] = '\n';
+        for (int i = 0; i < connections; i++) {
+            idle.add(BenchmarkSupport.connect(port));
+        }
+        socket = BenchmarkSupport.connect(port);
+        os = socket.getOutputStream();
+        is = socket.getInputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        server.close();
+        BenchmarkSupport.closeAll(idle);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int throughput() throws IOException {
+        return roundTrip();
+    }
+
+    // SampleTime 模式会输出 p50 / p99 / p99.9 等分位数
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency() throws IOException {
+        return roundTrip();
+    }
+
+    private int roundTrip() throws IOException {
+        os.write(message);
+        final int ack = is.read();
+        if (ack == -1) {
+            throw new IOException("服务端关闭了连接");
+        }
+        return ack;
+    }
+
+}
@@ -0,0 +1,94 @@
+package eniso.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+final class BenchmarkSupport {
+
+    static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private BenchmarkSupport() {
+    }
+
+    // 找一个空闲端口，避免和本机正在运行的示例（7070）冲突
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        }
+    }
+
+    // 服务端每条消息都会打印，压测时丢弃标准输出，只保留字符串拼接和编码的开销，避免刷屏影响测量
+    static void silenceStdout() {
+        System.setOut(nullStream());
+    }
+
+    // 服务端每个连接的上线、下线也会打印到标准错误，压测大量短连接时使用
+    static void silenceStderr() {
+        System.setErr(nullStream());
+    }
+
+    private static PrintStream nullStream() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+
+    static Thread start(Runnable server, String name) throws InterruptedException {
+        final Thread thread = new Thread(server, name);
+        thread.setDaemon(true);
+        thread.start();
+        // 等待服务端进入事件循环
+        Thread.sleep(200);
+        return thread;
+    }
+
+    static Socket connect(int port) throws IOException {
+        final Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(LOOPBACK, port));
+        return socket;
+    }
+
+    static void closeAll(List<? extends java.io.Closeable> closeables) {
+        for (java.io.Closeable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        closeables.clear();
+    }
+
+    static byte[] payload(int size) {
+        final byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        return payload;
+    }
+
+    static byte[] frame(byte[] payload) {
+        final byte[] frame = new byte[4 + payload.length];
+        frame[0] = (byte) (payload.length >>> 24);
+        frame[1] = (byte) (payload.length >>> 16);
+        frame[2] = (byte) (payload.length >>> 8);
+        frame[3] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 4, payload.length);
+        return frame;
+    }
+
+}
@@ -0,0 +1,94 @@
+package eniso.benchmark;
+
+import eniso.nio.NIOBasicServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 每次操作：在同一个连接上发送一帧请求（长度 + 8 字节关联 ID + 内容），等待服务端原样返回的响应
+// 连接在 Trial 开始时建立，测量的是服务端处理消息的开销，而不是建立和关闭连接
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NIOBasicServerBenchmark {
+
+    // 压测期间额外保持的空闲连接数，NIO 下只占用 Selector 上的一个 SelectionKey
+    @Param({"0", "100", "1000"})
+    public int connections;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private NIOBasicServer server;
+
+    private int port;
+
+    private byte[] frame;
+
+    private byte[] response;
+
+    private final List<Socket> idle = new ArrayList<>();
+
+    private Socket socket;
+
+    private OutputStream os;
+
+    private DataInputStream is;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        BenchmarkSupport.silenceStdout();
+        BenchmarkSupport.silenceStderr();
+        port = BenchmarkSupport.freePort();
+        server = new NIOBasicServer(port, NIOBasicServer.ECHO);
+        BenchmarkSupport.start(server, "nio-basic-server");
+        // 关联 ID 固定为 0，一次只有一个请求在途
+        frame = BenchmarkSupport.frame(new byte[NIOBasicServer.CORRELATION_ID_LENGTH + payloadSize]);
+        System.arraycopy(BenchmarkSupport.payload(payloadSize), 0, frame, frame.length - payloadSize, payloadSize);
+        response = new byte[frame.length];
+        for (int i = 0; i < connections; i++) {
+            idle.add(BenchmarkSupport.connect(port));
+        }
+        socket = BenchmarkSupport.connect(port);
+        os = socket.getOutputStream();
+        is = new DataInputStream(socket.getInputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        server.stop();
+        server.close();
+        BenchmarkSupport.closeAll(idle);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int throughput() throws IOException {
+        return roundTrip();
+    }
+
+    // SampleTime 模式会输出 p50 / p99 / p99.9 等分位数
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency() throws IOException {
+        return roundTrip();
+    }
+
+    private int roundTrip() throws IOException {
+        os.write(frame);
+        // 响应帧与请求帧长度相同
+        is.readFully(response);
+        return response.length;
+    }
+
+}
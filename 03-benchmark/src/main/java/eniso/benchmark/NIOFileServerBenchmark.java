@@ -0,0 +1,81 @@
+package eniso.benchmark;
+
+import eniso.nio.NIOFileServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// 每次操作：在同一个连接上请求一个文件，读取 8 字节长度和全部文件内容
+// BUFFERED 与 NIOChannel#copy01 相同，先读到 buffer 再写出，用来对比 transferTo 的 0 拷贝
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NIOFileServerBenchmark {
+
+    @Param({"TRANSFER_TO", "MAPPED", "BUFFERED"})
+    public NIOFileServer.TransferMode mode;
+
+    @Param({"65536", "16777216"})
+    public int fileSize;
+
+    private Path root;
+
+    private NIOFileServer server;
+
+    private Socket socket;
+
+    private OutputStream out;
+
+    private DataInputStream in;
+
+    private byte[] request;
+
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        root = Files.createTempDirectory("nio-file-server");
+        Files.write(root.resolve("data.bin"), BenchmarkSupport.payload(fileSize));
+        final int port = BenchmarkSupport.freePort();
+        server = new NIOFileServer(port, root, mode);
+        BenchmarkSupport.start(server, "nio-file-server");
+        socket = BenchmarkSupport.connect(port);
+        out = socket.getOutputStream();
+        in = new DataInputStream(socket.getInputStream());
+        request = BenchmarkSupport.frame("data.bin".getBytes());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.stop();
+        server.close();
+        socket.close();
+        Files.deleteIfExists(root.resolve("data.bin"));
+        Files.deleteIfExists(root);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long download() throws IOException {
+        out.write(request);
+        final long size = in.readLong();
+        long remaining = size;
+        while (remaining > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("连接被关闭，还有 " + remaining + " 字节没有收到");
+            }
+            remaining -= read;
+        }
+        return size;
+    }
+
+}
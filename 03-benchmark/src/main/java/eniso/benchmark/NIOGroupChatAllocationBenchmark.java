@@ -0,0 +1,134 @@
+package eniso.benchmark;
+
+import eniso.nio.NIOGroupChatServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 每次操作：发送者发送一帧消息，服务端 读取 -> 写日志 -> 广播，探测连接收到广播后返回
+// 用于配合 -prof gc 检查稳定状态下的分配，gc.alloc.rate.norm 统计的是整个 JVM（包括服务端线程）每次操作分配的字节数，应该接近 0 B/op
+// 客户端也使用阻塞的 SocketChannel 和直接内存，不引入额外的分配；服务端只用一个 worker，广播在事件循环内直接发送
+@State(Scope.Benchmark)
+@Threads(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NIOGroupChatAllocationBenchmark {
+
+    // 群聊中除了发送者和探测连接之外的成员数量，每个成员由一个线程读取并丢弃
+    @Param({"0", "16"})
+    public int connections;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private NIOGroupChatServer server;
+
+    private final List<SocketChannel> members = new ArrayList<>();
+
+    private final List<Thread> drainers = new ArrayList<>();
+
+    private SocketChannel sender;
+
+    private SocketChannel probe;
+
+    private ByteBuffer frame;
+
+    private ByteBuffer received;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        BenchmarkSupport.silenceStdout();
+        BenchmarkSupport.silenceStderr();
+        final int port = BenchmarkSupport.freePort();
+        server = new NIOGroupChatServer(port, 1);
+        BenchmarkSupport.start(server, "group-chat-server");
+
+        for (int i = 0; i < connections; i++) {
+            final SocketChannel member = open(port);
+            members.add(member);
+            final Thread drainer = new Thread(() -> drain(member), "drainer-" + i);
+            drainer.setDaemon(true);
+            drainer.start();
+            drainers.add(drainer);
+        }
+        sender = open(port);
+        probe = open(port);
+        final byte[] payload = BenchmarkSupport.payload(payloadSize);
+        frame = ByteBuffer.allocateDirect(4 + payloadSize);
+        frame.putInt(payloadSize).put(payload).flip();
+        received = ByteBuffer.allocateDirect(64 * 1024);
+        // 等待上线通知发送完毕，然后丢弃，保证测量期间探测连接只收到广播消息
+        Thread.sleep(500);
+        probe.configureBlocking(false);
+        while (probe.read(received) > 0) {
+            received.clear();
+        }
+        received.clear();
+        probe.configureBlocking(true);
+    }
+
+    private static SocketChannel open(int port) throws IOException {
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(BenchmarkSupport.LOOPBACK, port));
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    private static void drain(SocketChannel member) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (member.read(buffer) != -1) {
+                buffer.clear();
+            }
+        } catch (IOException ignored) {
+            // 压测结束时关闭连接
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        // 先关闭服务端，避免客户端逐个断开时触发大量下线广播
+        server.stop();
+        server.close();
+        BenchmarkSupport.closeAll(members);
+        for (Thread drainer : drainers) {
+            drainer.join();
+        }
+        drainers.clear();
+        sender.close();
+        probe.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int broadcast() throws IOException {
+        frame.rewind();
+        while (frame.hasRemaining()) {
+            sender.write(frame);
+        }
+        // 广播消息：4 字节长度 + 服务端添加的用户前缀 + 原始内容
+        received.clear().limit(4);
+        readFully();
+        final int length = received.getInt(0);
+        received.clear().limit(length);
+        readFully();
+        return length;
+    }
+
+    private void readFully() throws IOException {
+        while (received.hasRemaining()) {
+            if (probe.read(received) == -1) {
+                throw new IOException("服务端关闭了连接");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package eniso.benchmark;
+
+import eniso.nio.NIOGroupChatServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 每次操作：发送者发送一帧消息，测量从发送到探测连接收到广播的端到端时间
+// 其余接收者由后台线程读取并丢弃，模拟群聊中的其他成员
+@State(Scope.Benchmark)
+@Threads(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NIOGroupChatServerBenchmark {
+
+    // 群聊中除了发送者和探测连接之外的成员数量
+    @Param({"0", "100", "1000"})
+    public int connections;
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    private NIOGroupChatServer server;
+
+    private final List<SocketChannel> members = new ArrayList<>();
+
+    private Selector drainSelector;
+
+    private Thread drainer;
+
+    private volatile boolean draining;
+
+    private java.net.Socket sender;
+
+    private OutputStream senderOutput;
+
+    private java.net.Socket probe;
+
+    private DataInputStream probeInput;
+
+    private byte[] frame;
+
+    private byte[] received;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        BenchmarkSupport.silenceStdout();
+        final int port = BenchmarkSupport.freePort();
+        server = new NIOGroupChatServer(port);
+        BenchmarkSupport.start(server, "group-chat-server");
+
+        drainSelector = Selector.open();
+        for (int i = 0; i < connections; i++) {
+            final SocketChannel member = SocketChannel.open(new InetSocketAddress(BenchmarkSupport.LOOPBACK, port));
+            member.configureBlocking(false);
+            member.register(drainSelector, SelectionKey.OP_READ);
+            members.add(member);
+        }
+        draining = true;
+        drainer = new Thread(this::drain, "drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        sender = BenchmarkSupport.connect(port);
+        senderOutput = sender.getOutputStream();
+        probe = BenchmarkSupport.connect(port);
+        probeInput = new DataInputStream(probe.getInputStream());
+        // 等待上线通知发送完毕，然后丢弃，保证测量期间探测连接只收到广播消息
+        Thread.sleep(500);
+        while (probeInput.available() > 0) {
+            probeInput.skip(probeInput.available());
+        }
+
+        frame = BenchmarkSupport.frame(BenchmarkSupport.payload(payloadSize));
+        received = new byte[payloadSize + 256];
+    }
+
+    private void drain() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (draining) {
+                if (drainSelector.select(100) == 0) {
+                    continue;
+                }
+                for (SelectionKey key : drainSelector.selectedKeys()) {
+                    buffer.clear();
+                    if (((SocketChannel) key.channel()).read(buffer) == -1) {
+                        key.cancel();
+                    }
+                }
+                drainSelector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        // 先关闭服务端，避免客户端逐个断开时触发大量下线广播
+        server.stop();
+        server.close();
+        draining = false;
+        drainer.join();
+        drainSelector.close();
+        BenchmarkSupport.closeAll(members);
+        sender.close();
+        probe.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int throughput() throws IOException {
+        return broadcast();
+    }
+
+    // SampleTime 模式会输出 p50 / p99 / p99.9 等分位数
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int latency() throws IOException {
+        return broadcast();
+    }
+
+    private int broadcast() throws IOException {
+        senderOutput.write(frame);
+        // 广播消息：4 字节长度 + 服务端添加的用户前缀 + 原始内容
+        final int length = probeInput.readInt();
+        probeInput.readFully(received, 0, length);
+        return length;
+    }
+
+}
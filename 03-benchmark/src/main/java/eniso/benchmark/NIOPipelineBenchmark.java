@@ -0,0 +1,58 @@
+package eniso.benchmark;
+
+import eniso.nio.NIOBasicServer;
+import eniso.nio.NIOPipelinedClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// 请求/响应模式：每次操作完成 REQUESTS 个请求，每批发送 depth 个请求后等待这一批的响应
+// 服务端一次读取解码出的所有请求，响应合并为一次 Gathering write，depth 越大系统调用越少
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NIOPipelineBenchmark {
+
+    private static final int REQUESTS = 256;
+
+    @Param({"1", "16", "64", "256"})
+    public int depth;
+
+    @Param({"16", "512"})
+    public int payloadSize;
+
+    private NIOBasicServer server;
+
+    private NIOPipelinedClient client;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        BenchmarkSupport.silenceStdout();
+        final int port = BenchmarkSupport.freePort();
+        server = new NIOBasicServer(port, NIOBasicServer.ECHO);
+        BenchmarkSupport.start(server, "nio-pipeline-server");
+        client = new NIOPipelinedClient(BenchmarkSupport.LOOPBACK.getHostAddress(), port,
+                BenchmarkSupport.payload(payloadSize));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+        server.close();
+    }
+
+    // 结果是每秒完成的请求数
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void requests() throws IOException {
+        for (int i = 0; i < REQUESTS / depth; i++) {
+            client.roundTrip(depth);
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package eniso.benchmark;
+
+import eniso.nio.NIOSelectedKeySet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 一次 selectNow + 遍历所有就绪的 key：对比 JDK 默认的 HashSet 与数组实现的 NIOSelectedKeySet
+// keys 个 Pipe 的读端注册 OP_READ，写端各写入 1 字节且从不读取，水平触发下每次 select 都全部就绪
+// 配合 -prof gc 查看每次 select 分配的字节数
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SelectedKeySetBenchmark {
+
+    @Param({"16", "256", "1024"})
+    public int keys;
+
+    @Param({"true", "false"})
+    public boolean optimized;
+
+    private Selector selector;
+
+    private NIOSelectedKeySet keySet;
+
+    private final List<Pipe> pipes = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        selector = Selector.open();
+        if (optimized) {
+            keySet = NIOSelectedKeySet.install(selector);
+            if (keySet == null) {
+                throw new IllegalStateException("当前 JDK 不支持替换 selectedKeys");
+            }
+        }
+        for (int i = 0; i < keys; i++) {
+            final Pipe pipe = Pipe.open();
+            pipe.source().configureBlocking(false);
+            pipe.source().register(selector, SelectionKey.OP_READ);
+            pipe.sink().write(ByteBuffer.wrap(new byte[1]));
+            pipes.add(pipe);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        selector.close();
+        for (Pipe pipe : pipes) {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    @Benchmark
+    public int selectAndIterate(Blackhole blackhole) throws IOException {
+        final int selected = selector.selectNow();
+        if (keySet != null) {
+            for (int i = 0; i < keySet.size(); i++) {
+                blackhole.consume(keySet.get(i).readyOps());
+            }
+            keySet.reset();
+        } else {
+            final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                blackhole.consume(iterator.next().readyOps());
+                iterator.remove();
+            }
+        }
+        return selected;
+    }
+
+}
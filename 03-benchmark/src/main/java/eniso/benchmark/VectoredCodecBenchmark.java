@@ -0,0 +1,111 @@
+package eniso.benchmark;
+
+import eniso.nio.NIOVectoredCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// 发送一条 头部 + body + 尾部 的消息：一次 Gathering write，对比先合并到一个 buffer 再 write，以及分三次 write
+// 接收端由后台线程读取丢弃
+// gathering 与 separate 相比少两次系统调用；与 concatenate 相比少一次 body 的拷贝，但 writev 本身有额外开销，
+// body 很小时拷贝更便宜，body 越大 gathering 越有优势
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class VectoredCodecBenchmark {
+
+    @Param({"64", "1024", "16384", "65536"})
+    public int bodySize;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel sender;
+
+    private SocketChannel receiver;
+
+    private Thread drainer;
+
+    private ByteBuffer body;
+
+    private NIOVectoredCodec.Encoder encoder;
+
+    // 合并方式使用的 buffer，预先分配好，只比较拷贝本身的开销
+    private ByteBuffer merged;
+
+    private final CRC32 crc = new CRC32();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(BenchmarkSupport.LOOPBACK, 0));
+        sender = SocketChannel.open(server.getLocalAddress());
+        sender.socket().setTcpNoDelay(true);
+        receiver = server.accept();
+        drainer = new Thread(() -> {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (receiver.read(buffer) != -1) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // 压测结束，连接被关闭
+            }
+        }, "vectored-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        body = ByteBuffer.allocateDirect(bodySize);
+        body.put(BenchmarkSupport.payload(bodySize)).flip();
+        encoder = new NIOVectoredCodec.Encoder();
+        merged = ByteBuffer.allocateDirect(NIOVectoredCodec.HEADER_LENGTH + bodySize + NIOVectoredCodec.TRAILER_LENGTH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        sender.close();
+        drainer.join(1000);
+        receiver.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long gathering() throws IOException {
+        return encoder.write(sender, 1, body.duplicate());
+    }
+
+    @Benchmark
+    public long concatenate() throws IOException {
+        final ByteBuffer payload = body.duplicate();
+        crc.reset();
+        crc.update(payload.duplicate());
+        merged.clear();
+        merged.putInt(1).putInt(payload.remaining()).put(payload).putInt((int) crc.getValue()).flip();
+        long written = 0;
+        while (merged.hasRemaining()) {
+            written += sender.write(merged);
+        }
+        return written;
+    }
+
+    @Benchmark
+    public long separate() throws IOException {
+        encoder.prepare(1, body.duplicate());
+        long written = 0;
+        // 与 Encoder 相同的三个 buffer，每个 buffer 一次系统调用
+        for (ByteBuffer buffer : encoder.buffers()) {
+            while (buffer.hasRemaining()) {
+                written += sender.write(buffer);
+            }
+        }
+        return written;
+    }
+
+}